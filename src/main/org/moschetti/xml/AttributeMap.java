@@ -0,0 +1,129 @@
+package org.moschetti.xml;
+
+import org.xml.sax.Attributes;
+
+import java.util.Map;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ *  The attributes of one element, as stored in <tt>__attributes_</tt>
+ *  entries when ParseOptions.attributeStorage is ATTRIBUTES_COMPACT.
+ *  Names and values sit side by side in a single Object[] sized exactly
+ *  to the attribute count; there is no hash table and no Entry objects,
+ *  and the map is built straight from the SAX Attributes without a
+ *  scratch map in between.   Elements are rarely given more than a few
+ *  attributes, so lookup is a linear scan.
+ *
+ *  Immutable:  put, remove, etc. throw UnsupportedOperationException.
+ */
+public final class AttributeMap extends AbstractMap<String,Object> {
+
+    /**
+     *  name0, value0, name1, value1, ...
+     */
+    private final Object[] kv;
+
+    private Set<Map.Entry<String,Object>> entrySet;
+
+
+    AttributeMap(Object[] kv) {
+	this.kv = kv;
+    }
+
+
+    /**
+     *  Local name to value, like HashHandler has always done (a later
+     *  duplicate local name wins).  null if there are no attributes.
+     *  symbols may be null.
+     */
+    static AttributeMap of(Attributes a, SymbolTable symbols) {
+	int n = a.getLength();
+	if(n == 0) {
+	    return null;
+	}
+
+	Object[] kv = new Object[n * 2];
+	int k = 0;
+
+	for(int kk = 0; kk < n; kk++) {
+	    String ln = a.getLocalName(kk);
+	    if(symbols != null) {
+		ln = symbols.intern(ln);
+	    }
+	    int i = indexOf(kv, k, ln);
+	    if(i >= 0) {
+		kv[i + 1] = a.getValue(kk);
+	    } else {
+		kv[k++] = ln;
+		kv[k++] = a.getValue(kk);
+	    }
+	}
+
+	return new AttributeMap((k == kv.length) ? kv : Arrays.copyOf(kv, k));
+    }
+
+
+    private static int indexOf(Object[] kv, int n, Object key) {
+	for(int i = 0; i < n; i += 2) {
+	    Object k = kv[i];
+	    if(k == key || k.equals(key)) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+
+    public int size() {
+	return kv.length >> 1;
+    }
+
+    public boolean containsKey(Object key) {
+	return key != null && indexOf(kv, kv.length, key) >= 0;
+    }
+
+    public Object get(Object key) {
+	if(key == null) {
+	    return null;
+	}
+	int i = indexOf(kv, kv.length, key);
+	return (i < 0) ? null : kv[i + 1];
+    }
+
+
+    public Set<Map.Entry<String,Object>> entrySet() {
+	if(entrySet == null) {
+	    entrySet = new AbstractSet<Map.Entry<String,Object>>() {
+		public Iterator<Map.Entry<String,Object>> iterator() {
+		    return new Iterator<Map.Entry<String,Object>>() {
+			private int i = 0;
+
+			public boolean hasNext() {
+			    return i < kv.length;
+			}
+
+			public Map.Entry<String,Object> next() {
+			    if(i >= kv.length) {
+				throw new NoSuchElementException();
+			    }
+			    Map.Entry<String,Object> e = new AbstractMap.SimpleImmutableEntry<String,Object>((String)kv[i], kv[i + 1]);
+			    i += 2;
+			    return e;
+			}
+		    };
+		}
+
+		public int size() {
+		    return kv.length >> 1;
+		}
+	    };
+	}
+	return entrySet;
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.moschetti.xml;
+
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  A random-access run of bytes holding an XML document, possibly
+ *  longer than 2GB and so possibly carved into several ByteBuffer
+ *  segments.  Used by ParallelParser, which needs to scan the bytes
+ *  once and then re-read arbitrary ranges of them concurrently.
+ */
+interface ByteSource {
+
+    long length();
+
+    /**
+     *  Segments cover the source in order, back to back.
+     */
+    int segments();
+
+    /**
+     *  An independent view (own position / limit) of segment i, so
+     *  callers can use it without stepping on anyone else.
+     */
+    ByteBuffer segment(int i);
+
+    /**
+     *  Offset of segment i within the source.
+     */
+    long segmentBase(int i);
+
+    /**
+     *  Bytes [from, to) as an InputStream.  Safe to call from many
+     *  threads at once.
+     */
+    InputStream stream(long from, long to);
+
+
+
+    static ByteSource of(final byte[] data) {
+	return new ByteSource() {
+	    public long length() {
+		return data.length;
+	    }
+	    public int segments() {
+		return 1;
+	    }
+	    public ByteBuffer segment(int i) {
+		return ByteBuffer.wrap(data);
+	    }
+	    public long segmentBase(int i) {
+		return 0;
+	    }
+	    public InputStream stream(long from, long to) {
+		return new ByteArrayInputStream(data, (int)from, (int)(to - from));
+	    }
+	};
+    }
+
+}
@@ -0,0 +1,147 @@
+package org.moschetti.xml;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  OutputStream face on a WritableByteChannel for XmlWriter.   Bytes
+ *  are copied into up to GATHER direct buffers, and when all of them
+ *  are full they go to the channel in one gathering write (one write()
+ *  per buffer if the channel cannot gather).   Direct buffers are
+ *  expensive to make and slow to be freed, so they come from a small
+ *  pool shared by all instances and go back on close().
+ *
+ *  The channel must be blocking.   close() writes out what is left but
+ *  does NOT close the channel; that still belongs to the caller.
+ */
+final class ChannelOutput extends OutputStream {
+
+    static final int BUFFER = 64 * 1024;
+    static final int GATHER = 4;
+
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * GATHER;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final WritableByteChannel ch;
+    private final ByteBuffer[] bufs = new ByteBuffer[GATHER];
+    private int cur = 0;
+
+
+    ChannelOutput(WritableByteChannel ch) {
+	this.ch = ch;
+	bufs[0] = take();
+    }
+
+
+    public void write(int b) throws IOException {
+	if(!bufs[cur].hasRemaining()) {
+	    next();
+	}
+	bufs[cur].put((byte)b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+	while(len > 0) {
+	    ByteBuffer bb = bufs[cur];
+	    if(!bb.hasRemaining()) {
+		next();
+		bb = bufs[cur];
+	    }
+	    int n = Math.min(len, bb.remaining());
+	    bb.put(b, off, n);
+	    off += n;
+	    len -= n;
+	}
+    }
+
+
+    /**
+     *  The channel has no flush of its own, so this just drains.
+     */
+    public void flush() throws IOException {
+	drain();
+    }
+
+    public void close() throws IOException {
+	if(bufs[0] == null) {
+	    return;
+	}
+	try {
+	    drain();
+	} finally {
+	    for(int i = 0; i < GATHER; i++) {
+		if(bufs[i] != null) {
+		    give(bufs[i]);
+		    bufs[i] = null;
+		}
+	    }
+	}
+    }
+
+
+
+    private void next() throws IOException {
+	if(cur + 1 == GATHER) {
+	    drain();
+	} else {
+	    cur++;
+	    if(bufs[cur] == null) {
+		bufs[cur] = take();
+	    }
+	}
+    }
+
+
+    private void drain() throws IOException {
+	int n = cur + 1;
+	for(int i = 0; i < n; i++) {
+	    bufs[i].flip();
+	}
+
+	if(ch instanceof GatheringByteChannel) {
+	    GatheringByteChannel g = (GatheringByteChannel)ch;
+	    while(bufs[cur].hasRemaining()) {
+		g.write(bufs, 0, n);
+	    }
+	} else {
+	    for(int i = 0; i < n; i++) {
+		while(bufs[i].hasRemaining()) {
+		    ch.write(bufs[i]);
+		}
+	    }
+	}
+
+	for(int i = 0; i < n; i++) {
+	    bufs[i].clear();
+	}
+	cur = 0;
+    }
+
+
+    private static ByteBuffer take() {
+	ByteBuffer bb = pool.poll();
+	if(bb == null) {
+	    return ByteBuffer.allocateDirect(BUFFER);
+	}
+	pooled.decrementAndGet();
+	return bb;
+    }
+
+    private static void give(ByteBuffer bb) {
+	bb.clear();
+	if(pooled.incrementAndGet() <= MAX_POOLED) {
+	    pool.offer(bb);
+	} else {
+	    pooled.decrementAndGet();
+	}
+    }
+}
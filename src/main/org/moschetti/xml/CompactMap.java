@@ -0,0 +1,288 @@
+package org.moschetti.xml;
+
+import java.util.Map;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.ConcurrentModificationException;
+
+/**
+ *  Small, insertion-ordered Map for parse output.  Most maps coming out
+ *  of XML are leaf-ish things with 1 to 3 keys, but a HashMap or
+ *  LinkedHashMap for them costs a 16 bucket table plus an Entry object
+ *  per key.   CompactMap keeps keys and values side by side in ONE
+ *  Object[] sized to what is actually there and does a linear scan on
+ *  lookup, which for a handful of (usually interned) String keys is
+ *  as fast as hashing.
+ *
+ *  Once the map grows past the threshold (default 8) it quietly
+ *  switches to an internal LinkedHashMap so big maps do not degrade
+ *  to O(n) lookups.  Either way iteration order is insertion order,
+ *  just like LinkedHashMap.
+ *  <pre>
+ *  XMLUtils.ParseOptions opts = new XMLUtils.ParseOptions();
+ *  opts.mapFactory = CompactMap::new;
+ *  </pre>
+ *  Not thread safe (neither is HashMap).  Null keys and values are
+ *  allowed.
+ */
+public class CompactMap extends AbstractMap<String,Object> {
+
+    public static final int DEFAULT_THRESHOLD = 8;
+
+    private final int threshold;
+
+    /**
+     *  k0, v0, k1, v1, ...   null until the first put.
+     */
+    private Object[] kv;
+    private int size;
+
+    /**
+     *  Non-null once we have outgrown the array.
+     */
+    private LinkedHashMap<String,Object> big;
+
+    private int modCount;
+
+    private Set<Map.Entry<String,Object>> entrySet;
+
+
+    public CompactMap() {
+	this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     *  threshold is the number of keys held in the flat array before
+     *  switching over to hashing.
+     */
+    public CompactMap(int threshold) {
+	this.threshold = threshold < 1 ? 1 : threshold;
+    }
+
+
+    private int indexOf(Object key) {
+	Object[] a = kv;
+	int n = size << 1;
+	for(int i = 0; i < n; i += 2) {
+	    Object k = a[i];
+	    if(k == key || (key != null && key.equals(k))) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+
+    public int size() {
+	return (big != null) ? big.size() : size;
+    }
+
+    public boolean isEmpty() {
+	return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+	if(big != null) {
+	    return big.containsKey(key);
+	}
+	return indexOf(key) >= 0;
+    }
+
+    public Object get(Object key) {
+	if(big != null) {
+	    return big.get(key);
+	}
+	int i = indexOf(key);
+	return (i < 0) ? null : kv[i + 1];
+    }
+
+
+    public Object put(String key, Object value) {
+	if(big != null) {
+	    return big.put(key, value);
+	}
+
+	int i = indexOf(key);
+	if(i >= 0) {
+	    // Replacing a value is not a structural change:
+	    Object old = kv[i + 1];
+	    kv[i + 1] = value;
+	    return old;
+	}
+
+	if(size == threshold) {
+	    big = new LinkedHashMap<String,Object>(threshold * 4);
+	    for(int j = 0; j < size << 1; j += 2) {
+		big.put((String)kv[j], kv[j + 1]);
+	    }
+	    kv = null;
+	    size = 0;
+	    modCount++;
+	    return big.put(key, value);
+	}
+
+	if(kv == null) {
+	    kv = new Object[2];
+	} else if(kv.length == size << 1) {
+	    int ncap = Math.min(size * 2, threshold);
+	    Object[] na = new Object[ncap << 1];
+	    System.arraycopy(kv, 0, na, 0, size << 1);
+	    kv = na;
+	}
+
+	kv[size << 1] = key;
+	kv[(size << 1) + 1] = value;
+	size++;
+	modCount++;
+
+	return null;
+    }
+
+
+    public Object remove(Object key) {
+	if(big != null) {
+	    return big.remove(key);
+	}
+	int i = indexOf(key);
+	if(i < 0) {
+	    return null;
+	}
+	Object old = kv[i + 1];
+	removeAt(i);
+	return old;
+    }
+
+
+    private void removeAt(int i) {
+	int n = size << 1;
+	System.arraycopy(kv, i + 2, kv, i, n - i - 2);
+	kv[n - 2] = null;
+	kv[n - 1] = null;
+	size--;
+	modCount++;
+    }
+
+
+    public void clear() {
+	big = null;
+	kv = null;
+	size = 0;
+	modCount++;
+    }
+
+
+    public Set<Map.Entry<String,Object>> entrySet() {
+	if(entrySet == null) {
+	    entrySet = new EntrySet();
+	}
+	return entrySet;
+    }
+
+
+
+    private class EntrySet extends AbstractSet<Map.Entry<String,Object>> {
+
+	public Iterator<Map.Entry<String,Object>> iterator() {
+	    if(big != null) {
+		return big.entrySet().iterator();
+	    }
+	    return new Itr();
+	}
+
+	public int size() {
+	    return CompactMap.this.size();
+	}
+
+	public void clear() {
+	    CompactMap.this.clear();
+	}
+    }
+
+
+    private class Itr implements Iterator<Map.Entry<String,Object>> {
+	private int next = 0;      // array index of next key
+	private int lastRet = -1;
+	private int expectedModCount = modCount;
+
+	public boolean hasNext() {
+	    return next < size << 1;
+	}
+
+	public Map.Entry<String,Object> next() {
+	    if(modCount != expectedModCount) {
+		throw new ConcurrentModificationException();
+	    }
+	    if(next >= size << 1) {
+		throw new NoSuchElementException();
+	    }
+	    lastRet = next;
+	    next += 2;
+	    return new Ent(lastRet);
+	}
+
+	public void remove() {
+	    if(lastRet < 0) {
+		throw new IllegalStateException();
+	    }
+	    if(modCount != expectedModCount) {
+		throw new ConcurrentModificationException();
+	    }
+	    removeAt(lastRet);
+	    next = lastRet;
+	    lastRet = -1;
+	    expectedModCount = modCount;
+	}
+    }
+
+
+    /**
+     *  Live view of slot i; setValue() writes thru to the map.
+     */
+    private class Ent implements Map.Entry<String,Object> {
+	private final int i;
+
+	Ent(int i) {
+	    this.i = i;
+	}
+
+	public String getKey() {
+	    return (String)kv[i];
+	}
+
+	public Object getValue() {
+	    return kv[i + 1];
+	}
+
+	public Object setValue(Object value) {
+	    Object old = kv[i + 1];
+	    kv[i + 1] = value;
+	    return old;
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof Map.Entry)) {
+		return false;
+	    }
+	    Map.Entry e = (Map.Entry)o;
+	    Object k = getKey();
+	    Object v = getValue();
+	    return (k == null ? e.getKey() == null : k.equals(e.getKey()))
+		&& (v == null ? e.getValue() == null : v.equals(e.getValue()));
+	}
+
+	public int hashCode() {
+	    Object k = getKey();
+	    Object v = getValue();
+	    return (k == null ? 0 : k.hashCode()) ^ (v == null ? 0 : v.hashCode());
+	}
+
+	public String toString() {
+	    return getKey() + "=" + getValue();
+	}
+    }
+
+}
@@ -0,0 +1,290 @@
+package org.moschetti.xml;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ *  The convertDates sniffer.  Works directly off the chars; a String is
+ *  only made (as the cache key) when the text passes the skeleton of
+ *  delimiters and digits and is not already in the cache.
+ *
+ *  Thank goodness all these formats have unique lengths!!!
+ *  <pre>
+ *  YYYY-MM-DD                     length is 10
+ *
+ *  YYYY-MM-DDThh:mm:ss            length is 19
+ *  YYYY-MM-DDThh:mm:ssZ           length is 20
+ *  YYYY-MM-DDThh:mm:ss+hh:mm      length is 25
+ *
+ *  YYYY-MM-DDThh:mm:ss.sss        length is 23
+ *  YYYY-MM-DDThh:mm:ss.sssZ       length is 24
+ *  YYYY-MM-DDThh:mm:ss.sss+hh:mm  length is 29
+ *  </pre>
+ *  Two flavors of output:
+ *  <ul>
+ *  <li>DATES_AS_UTIL_DATE (the original behavior): java.util.Date, built
+ *      the same way it always was (local JVM zone unless a zone is
+ *      given), so existing consumers see identical values.   That
+ *      includes adding a +hh:mm offset where it should be subtracted
+ *      (and vice versa), so the two flavors disagree by twice the
+ *      offset for such text.   Deliberate; see DATES_AS_UTIL_DATE.
+ *  <li>DATES_AS_JAVA_TIME: LocalDate for YYYY-MM-DD, LocalDateTime when
+ *      there is no zone, Instant for Z, OffsetDateTime for +hh:mm.
+ *  </ul>
+ *  Either way field overflow is lenient like Calendar, i.e. minute 88
+ *  rolls into the next hour.
+ *
+ *  Feeds repeat the same dates over and over, so parsed results are
+ *  cached by text in a ValueCache, looked up straight off the chars.
+ *  java.time values are immutable and are shared outright; for
+ *  java.util.Date (mutable!) only the millis are cached and a new Date
+ *  is handed out each time.  Not thread safe; one per HashHandler.
+ */
+final class DateSniffer {
+
+    private static final int MAX_CACHE = 1024;
+
+    private static final int[] dm    = { 0,1,2,3,  5,6,  8,9};
+    private static final int[] smm   = { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18 };
+    private static final int[] tzsmm = { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18, 20,21, 23,24};
+
+    private static final int[] msmm   = { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18,  20,21,22};
+    private static final int[] tzmsmm = { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18,  20,21,22, 24,25, 27,28};
+
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private final boolean javaTime;
+
+    private final ValueCache cache = new ValueCache(MAX_CACHE);
+
+
+    DateSniffer(boolean javaTime) {
+	this.javaTime = javaTime;
+    }
+
+
+    /**
+     *  Returns a date-ish object if buf[off..off+len) sniffs like one of
+     *  the formats above, else null.
+     */
+    Object sniff(char[] buf, int off, int len) {
+	int[] xmm = skeleton(buf, off, len);
+
+	if(xmm == null) {
+	    return null;
+	}
+
+	// Basic skeleton of delims is correct, so
+	// check for everything else being between 0 and 9:
+	for(int j = 0; j < xmm.length; j++) {
+	    char c = buf[off + xmm[j]];
+	    if(c < '0' || c > '9') {
+		return null;
+	    }
+	}
+
+	int hash = ValueCache.hash(buf, off, len);
+
+	Object v = cache.get(buf, off, len, hash);
+	if(v == null) {
+	    v = javaTime ? buildJavaTime(buf, off, len) : buildMillis(buf, off, len);
+	    if(v == null) {
+		return null;
+	    }
+	    cache.put(new String(buf, off, len), v, hash);
+	}
+
+	if(v instanceof Long) {
+	    return new Date(((Long)v).longValue());
+	}
+	return v;
+    }
+
+
+    /**
+     *  Check the delimiters and pick the digit position map.
+     *  s[10] must be 'T'
+     */
+    private static int[] skeleton(char[] s, int o, int l) {
+	if(l == 10) {
+	    if(s[o+4] == '-' && s[o+7] == '-') {
+		return dm;
+	    }
+
+	} else if(l == 19 || l == 20 || l == 25
+		  || l == 23 || l == 24 || l == 29) {
+
+	    if(s[o+4] == '-'
+	       && s[o+7] == '-'
+	       && s[o+10] == 'T'
+	       && s[o+13] == ':'
+	       && s[o+16] == ':') {
+
+		switch(l) {
+		case 19:
+		    return smm;
+		case 20:
+		    return (s[o+19] == 'Z') ? smm : null;
+		case 25:
+		    return ((s[o+19] == '+' || s[o+19] == '-') && s[o+22] == ':') ? tzsmm : null;
+
+		    // ms variants:
+		case 23:
+		    return msmm;
+		case 24:
+		    return (s[o+23] == 'Z') ? msmm : null;
+		case 29:
+		    return ((s[o+23] == '+' || s[o+23] == '-') && s[o+26] == ':') ? tzmsmm : null;
+		}
+	    }
+	}
+	return null;
+    }
+
+
+    /**
+     *  The original Calendar construction, kept bit for bit so
+     *  DATES_AS_UTIL_DATE output does not change.
+     */
+    private static Long buildMillis(char[] s, int o, int l) {
+	int hour = 0;
+	int min = 0;
+	int sec = 0;
+	int msec = 0;
+
+	int tzhrs = -1; // i.e. unset
+	int tzmin = -1; // i.e. unset
+	int mult = 1;
+
+	int year  = buildNumber(s, o + 0, 4);
+	int month = buildNumber(s, o + 5, 2);
+	int day   = buildNumber(s, o + 8, 2);
+
+	if(l != 10) {
+	    hour  = buildNumber(s, o + 11, 2);
+	    min   = buildNumber(s, o + 14, 2);
+	    sec   = buildNumber(s, o + 17, 2);
+
+	    if(l == 23 || l == 24 || l == 29) {
+		msec = buildNumber(s, o + 20, 3);
+	    }
+
+	    if(l == 20 || l == 24) {
+		tzhrs = 0; // Z means assume 00:00 offset
+		tzmin = 0;
+
+	    } else if(l == 25) {
+		tzhrs = buildNumber(s, o + 20, 2);
+		tzmin = buildNumber(s, o + 23, 2);
+
+		if(s[o+19] == '-') {
+		    mult = -1;
+		}
+
+	    } else if(l == 29) {
+		tzhrs = buildNumber(s, o + 24, 2);
+		tzmin = buildNumber(s, o + 27, 2);
+
+		if(s[o+23] == '-') {
+		    mult = -1;
+		}
+	    }
+	}
+
+	Calendar cal = Calendar.getInstance();
+	cal.clear();
+
+	// If we explicitly set up GMT offset, then FORCE the Calendar
+	// object into GMT mode.   Otherwise, when we do cal.getTime() later
+	// the local time JVM offset will automagically be added in!  Yuck
+	if(tzhrs != -1 || tzmin != -1) {
+	    cal.setTimeZone(GMT);
+	}
+
+	cal.set( Calendar.YEAR,  year );
+	cal.set( Calendar.MONTH, month - 1); // YOW!
+	cal.set( Calendar.DATE,  day );
+	cal.set( Calendar.HOUR_OF_DAY, hour );
+	cal.set( Calendar.MINUTE, min );
+	cal.set( Calendar.SECOND, sec );
+	cal.set( Calendar.MILLISECOND, msec );
+
+	// Still kinda unsure about all this...  (Rightly: the sign is
+	// backwards, +05:00 moves the instant LATER.  Kept as is so old
+	// data parses the same; buildJavaTime does it right.)
+	if(tzhrs != -1) {
+	    cal.add( Calendar.HOUR_OF_DAY, tzhrs * mult);
+	}
+	if(tzmin != -1) {
+	    cal.add( Calendar.MINUTE, tzmin * mult);
+	}
+
+	return Long.valueOf(cal.getTimeInMillis());
+    }
+
+
+    private static Object buildJavaTime(char[] s, int o, int l) {
+	int year  = buildNumber(s, o + 0, 4);
+	int month = buildNumber(s, o + 5, 2);
+	int day   = buildNumber(s, o + 8, 2);
+
+	try {
+	    if(l == 10) {
+		return LocalDate.of(year, 1, 1).plusMonths(month - 1).plusDays(day - 1);
+	    }
+
+	    int hour = buildNumber(s, o + 11, 2);
+	    int min  = buildNumber(s, o + 14, 2);
+	    int sec  = buildNumber(s, o + 17, 2);
+	    int msec = 0;
+
+	    if(l == 23 || l == 24 || l == 29) {
+		msec = buildNumber(s, o + 20, 3);
+	    }
+
+	    LocalDateTime ldt = LocalDateTime.of(year, 1, 1, 0, 0)
+		.plusMonths(month - 1)
+		.plusDays(day - 1)
+		.plusHours(hour)
+		.plusMinutes(min)
+		.plusSeconds(sec)
+		.plusNanos(msec * 1000000L);
+
+	    switch(l) {
+	    case 19:
+	    case 23:
+		return ldt;
+
+	    case 20:
+	    case 24:
+		return ldt.toInstant(ZoneOffset.UTC);
+
+	    default:
+		int tzo = (l == 25) ? 19 : 23;
+		int sign = (s[o+tzo] == '-') ? -1 : 1;
+		ZoneOffset zo = ZoneOffset.ofHoursMinutes(sign * buildNumber(s, o + tzo + 1, 2),
+							  sign * buildNumber(s, o + tzo + 4, 2));
+		return ldt.atOffset(zo);
+	    }
+
+	} catch(java.time.DateTimeException e) {
+	    // e.g. an offset of +25:00.  Not a date; leave it as a String.
+	    return null;
+	}
+    }
+
+
+    private static int buildNumber(char[] s, int idx, int len) {
+	int item = 0;
+	for(int k = 0; k < len; k++) {
+	    item = item * 10 + (s[idx + k] - '0');
+	}
+	return item;
+    }
+
+}
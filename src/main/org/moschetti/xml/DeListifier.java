@@ -0,0 +1,196 @@
+package org.moschetti.xml;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  The walk behind XMLUtils.deListify() and deListifyParallel().
+ *
+ *  No recursion:  Maps and Lists still to be looked at go on an
+ *  explicit stack, so a document 100,000 levels deep is no different
+ *  from a flat one.   Each Map is gone thru once with its entry
+ *  iterator instead of a copy of its keys; the promotions it calls for
+ *  are noted on the way and applied after, in the same order the old
+ *  walk did them.  The old walk looked up each key after the earlier
+ *  keys had been handled, so a key overwritten by an earlier promotion
+ *  (foo after foo_LIST) saw the promoted List and walked it; that is
+ *  kept too.
+ *
+ *  The parallel flavor hands chunks of big Lists to a ForkJoinPool.
+ *  Everything under one List element is walked by one thread; the
+ *  parser never puts the same Map in two places, so no two threads
+ *  ever touch the same Map.
+ */
+final class DeListifier {
+
+    /**
+     *  Lists longer than this are split into tasks of this many
+     *  elements when walking in parallel.
+     */
+    static final int SPLIT = 2048;
+
+    private DeListifier() {}
+
+
+    static void walk(Object root) {
+	ArrayDeque<Object> todo = new ArrayDeque<Object>();
+	todo.push(root);
+	drain(todo, null);
+    }
+
+
+    static void walk(Object root, ForkJoinPool pool) {
+	pool.invoke(new Walk(root, null, 0, 0));
+    }
+
+
+    /**
+     *  Walk everything reachable from todo.  If forked is not null,
+     *  big Lists are split off into tasks (added to forked) instead.
+     */
+    private static void drain(ArrayDeque<Object> todo, List<ForkJoinTask<?>> forked) {
+	while(!todo.isEmpty()) {
+	    Object o = todo.pop();
+
+	    if(o instanceof Map) {
+		visit((Map)o, todo);
+
+	    } else {
+		List l = (List)o;
+		int n = l.size();
+
+		if(forked != null && n > SPLIT) {
+		    for(int from = 0; from < n; from += SPLIT) {
+			forked.add(new Walk(null, l, from, Math.min(n, from + SPLIT)).fork());
+		    }
+		} else {
+		    for(int jj = 0; jj < n; jj++) {
+			push(todo, l.get(jj));
+		    }
+		}
+	    }
+	}
+    }
+
+
+    private static void push(ArrayDeque<Object> todo, Object ov) {
+	if(ov instanceof Map || ov instanceof List) {
+	    todo.push(ov);
+	}
+    }
+
+
+    /**
+     *  One Map:  queue its non-wrapper Maps and its Lists, promote
+     *  qualifying <i>name</i>_LIST wrappers.
+     */
+    private static void visit(Map m, ArrayDeque<Object> todo) {
+	// key, z, List triples, in the order found:
+	ArrayList<Object> moves = null;
+
+	for(Object eo : m.entrySet()) {
+	    Map.Entry e = (Map.Entry)eo;
+	    String key = (String)e.getKey();
+	    Object ov = e.getValue();
+
+	    if(moves != null) {
+		Object p = promotedTo(moves, key);
+		if(p != null) {
+		    ov = p;
+		}
+	    }
+
+	    if(ov instanceof Map) {
+		if(key.endsWith("_LIST")) {
+		    Map sub = (Map)ov;
+
+		    if(sub.size() == 1) {
+			//  If key was claims_LIST, then
+			//  z is claims
+			String z = key.substring(0, key.indexOf("_LIST"));
+			Object ov2 = sub.get(z);
+
+			if(ov2 instanceof List) {
+			    if(moves == null) {
+				moves = new ArrayList<Object>();
+			    }
+			    moves.add(key);
+			    moves.add(z);
+			    moves.add(ov2);
+			}
+		    }
+		} else {
+		    todo.push(ov);
+		}
+
+	    } else if(ov instanceof List) {
+		todo.push(ov);
+	    }
+	}
+
+	if(moves != null) {
+	    for(int kk = 0; kk < moves.size(); kk += 3) {
+		m.put(moves.get(kk + 1), moves.get(kk + 2));
+		m.remove(moves.get(kk));
+	    }
+	}
+    }
+
+
+    /**
+     *  The List most recently promoted into key, or null.
+     */
+    private static Object promotedTo(ArrayList<Object> moves, String key) {
+	for(int kk = moves.size() - 3; kk >= 0; kk -= 3) {
+	    if(key.equals(moves.get(kk + 1))) {
+		return moves.get(kk + 2);
+	    }
+	}
+	return null;
+    }
+
+
+
+    /**
+     *  Walk root, or elements [from, to) of list.
+     */
+    @SuppressWarnings("serial")
+    private static final class Walk extends RecursiveAction {
+	private final Object root;
+	private final List list;
+	private final int from;
+	private final int to;
+
+	Walk(Object root, List list, int from, int to) {
+	    this.root = root;
+	    this.list = list;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	protected void compute() {
+	    ArrayDeque<Object> todo = new ArrayDeque<Object>();
+	    if(list == null) {
+		todo.push(root);
+	    } else {
+		for(int jj = from; jj < to; jj++) {
+		    push(todo, list.get(jj));
+		}
+	    }
+
+	    List<ForkJoinTask<?>> forked = new ArrayList<ForkJoinTask<?>>();
+	    drain(todo, forked);
+
+	    for(ForkJoinTask<?> t : forked) {
+		t.join();
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,344 @@
+package org.moschetti.xml;
+
+import javax.xml.parsers.SAXParser;
+
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.SequenceInputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import java.util.function.Consumer;
+
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ *  Push-style parsing for input that shows up a piece at a time
+ *  (network reads, async HTTP bodies, etc.).   Instead of a thread
+ *  sitting in InputStream.read() for the life of the document, the
+ *  caller hands over bytes whenever it has some and goes back to
+ *  whatever it was doing:
+ *  <pre>
+ *  FeedParser fp = XMLUtils.feedParser("/data/item", opts, rec -&gt; ...);
+ *
+ *  // on each read completion, from any (one at a time) thread:
+ *  fp.feed(bb);
+ *
+ *  // when the connection says it is done:
+ *  fp.endOfInput();
+ *  </pre>
+ *  In record mode the records are exactly what parseRecords() would
+ *  hand out.  Each feed() runs RecordScanner over the new bytes and
+ *  parses whatever records are now complete right there on the calling
+ *  thread (wrapped in their ancestors' start and end tags, same as
+ *  ParallelParser), so records come out as soon as their last byte is
+ *  in and only the unfinished record is kept around.  The material
+ *  around the records (the "skeleton", as in ParallelParser) is only
+ *  scanned on the way in, so it is kept aside and run thru the real
+ *  parser at endOfInput(); broken markup between records is thrown
+ *  there just as parseRecords() would, though only after the records
+ *  before it have gone out.   Documents that cannot be split safely
+ *  (DOCTYPE, UTF-16, include / exclude paths, a record path only 1
+ *  deep) are instead held until endOfInput() and then parsed whole.
+ *
+ *  Without a record path the bytes are held and the document is parsed
+ *  at endOfInput(), which returns the same Map parseXML() would.  The
+ *  raw bytes are a lot smaller than the Maps and no thread waits on
+ *  them.
+ *
+ *  Not thread safe:  one feeder at a time.
+ */
+public class FeedParser {
+
+    private final String recordPath;
+    private final XMLUtils.ParseOptions options;
+    private final HashHandler hx;
+    private final SAXParser parser;
+
+    /**
+     *  null when just holding everything until endOfInput().
+     */
+    private RecordScanner scanner = null;
+
+    /**
+     *  streaming: a record group has been seen and the document can be
+     *  split, so bytes may now be let go of.   fallback: found out
+     *  (during a scan) that it cannot.
+     */
+    private boolean streaming = false;
+    private boolean fallback = false;
+    private boolean ended = false;
+    private boolean closed = false;
+
+    private byte[] xmlDecl = null;
+    private byte[] open;
+    private byte[] close;
+
+    /**
+     *  buf[0..len) holds document bytes [base, base + len); scanned is
+     *  how far the scanner has gotten.
+     */
+    private byte[] buf = new byte[8192];
+    private int len = 0;
+    private long base = 0;
+    private long scanned = 0;
+
+    /**
+     *  Everything not handed to parseReady(), up to skelPos, to be
+     *  checked at endOfInput().
+     */
+    private final ByteArrayOutputStream skeleton = new ByteArrayOutputStream();
+    private long skelPos = 0;
+
+    private static class Pending {
+	byte[] open;
+	byte[] close;
+	long start;
+	long end;
+    }
+
+    private final List<Pending> ready = new ArrayList<Pending>();
+
+
+    FeedParser(String recordPath, Class mapType, XMLUtils.ParseOptions options, Consumer<Map<String,Object>> consumer)
+	throws XMLParsingException
+    {
+	this.recordPath = recordPath;
+	this.options = options;
+	this.hx = XMLUtils.makeHandler(mapType, options);
+	this.parser = XMLUtils.newSAXParser();
+
+	if(recordPath != null) {
+	    String[] segs = HashHandler.splitPath(recordPath);
+	    hx.setRecordHandler(recordPath, consumer);
+
+	    if(segs.length >= 2 && !ParallelParser.projecting(options)) {
+		scanner = new RecordScanner(segs, ParallelParser.CHUNK_BYTES, new Listener());
+	    }
+	}
+    }
+
+
+    /**
+     *  Take all of bb (position to limit).  bb's position is moved to
+     *  its limit.   In record mode, records completed by these bytes are
+     *  handed to the consumer before this returns.
+     */
+    public void feed(ByteBuffer bb)
+	throws XMLParsingException
+    {
+	int n = bb.remaining();
+	room(n);
+	bb.get(buf, len, n);
+	len += n;
+
+	fed();
+    }
+
+
+    public void feed(byte[] b, int off, int n)
+	throws XMLParsingException
+    {
+	room(n);
+	System.arraycopy(b, off, buf, len, n);
+	len += n;
+
+	fed();
+    }
+
+
+    /**
+     *  No more bytes are coming.  Returns the root Map (without a record
+     *  path) or null (with one).   Throws if the document is incomplete
+     *  or broken.
+     */
+    public Map<String,Object> endOfInput()
+	throws XMLParsingException
+    {
+	if(closed) {
+	    throw new IllegalStateException("endOfInput() already called");
+	}
+	closed = true;
+
+	if(recordPath == null) {
+	    return XMLUtils.parseDocument(parser, held(), hx, options);
+	}
+
+	if(scanner == null || !streaming) {
+	    XMLUtils.runParse(parser, held(), hx);
+	    return null;
+	}
+
+	scanner.finish();
+	parseReady();
+
+	if(!ended) {
+	    throw new XMLParsingException("input ended in the middle of the document");
+	}
+
+	toSkeleton(base + len);
+	try {
+	    XMLUtils.runParse(parser, new ByteArrayInputStream(skeleton.toByteArray()), new DefaultHandler(), () -> false);
+	} finally {
+	    parser.reset();
+	}
+	return null;
+    }
+
+
+    /**
+     *  Bytes currently held.  In record mode this stays around the size
+     *  of the biggest record (plus whatever arrives in one feed); the
+     *  skeleton set aside for endOfInput() is not counted.
+     */
+    public int bytesHeld() {
+	return len;
+    }
+
+
+
+    private void room(int n) {
+	if(closed) {
+	    throw new IllegalStateException("endOfInput() already called");
+	}
+	if(len + n > buf.length) {
+	    buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+	}
+    }
+
+
+    private InputStream held() {
+	return new ByteArrayInputStream(buf, 0, len);
+    }
+
+
+    private void fed()
+	throws XMLParsingException
+    {
+	if(scanner == null || len == 0) {
+	    return;
+	}
+
+	if(base == 0 && scanned == 0) {
+	    if(len < 2) {
+		return; // need 2 bytes to rule out UTF-16
+	    }
+	    if(!ParallelParser.asciiCompatible(buf[0] & 0xff, buf[1] & 0xff)) {
+		scanner = null;
+		return;
+	    }
+	}
+
+	int from = (int)(scanned - base);
+	scanner.scan(ByteBuffer.wrap(buf, from, len - from), scanned);
+	scanned = base + len;
+
+	if(fallback) {
+	    scanner = null;
+	    ready.clear();
+	    return;
+	}
+
+	scanner.flush();
+	parseReady();
+
+	if(streaming) {
+	    drop(scanner.pending(scanned));
+	}
+    }
+
+
+    /**
+     *  Let go of everything before keep.
+     */
+    private void drop(long keep) {
+	toSkeleton(keep);
+	int n = (int)(keep - base);
+	if(n > 0) {
+	    System.arraycopy(buf, n, buf, 0, len - n);
+	    len -= n;
+	    base = keep;
+	}
+    }
+
+
+    /**
+     *  Move the held bytes from skelPos up to end over to skeleton.
+     */
+    private void toSkeleton(long end) {
+	if(end > skelPos) {
+	    skeleton.write(buf, (int)(skelPos - base), (int)(end - skelPos));
+	    skelPos = end;
+	}
+    }
+
+
+    private void parseReady()
+	throws XMLParsingException
+    {
+	for(Pending p : ready) {
+	    toSkeleton(p.start);
+	    skelPos = p.end;
+
+	    List<InputStream> parts = new ArrayList<InputStream>(4);
+	    if(xmlDecl != null) {
+		parts.add(new ByteArrayInputStream(xmlDecl));
+	    }
+	    parts.add(new ByteArrayInputStream(p.open));
+	    parts.add(new ByteArrayInputStream(buf, (int)(p.start - base), (int)(p.end - p.start)));
+	    parts.add(new ByteArrayInputStream(p.close));
+
+	    try {
+		XMLUtils.runParse(parser, new SequenceInputStream(Collections.enumeration(parts)), hx);
+	    } finally {
+		hx.reset();
+		parser.reset();
+	    }
+	}
+	ready.clear();
+    }
+
+
+
+    private class Listener implements RecordScanner.Listener {
+
+	public void group(int group, byte[] gopen, byte[] gclose) {
+	    if(scanner.sawDoctype()) {
+		fallback = true;
+		return;
+	    }
+	    if(xmlDecl == null) {
+		xmlDecl = scanner.xmlDecl();
+	    }
+	    open = gopen;
+	    close = gclose;
+	    streaming = true;
+	}
+
+	public void chunk(int group, long start, long end) {
+	    if(!fallback) {
+		Pending p = new Pending();
+		p.open = open;
+		p.close = close;
+		p.start = start;
+		p.end = end;
+		ready.add(p);
+	    }
+	}
+
+	public void run(int group, long start, long end, int count) {
+	}
+
+	public void documentEnded(long end) {
+	    ended = true;
+	}
+    }
+
+}
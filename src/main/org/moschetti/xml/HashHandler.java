@@ -2,9 +2,11 @@ package org.moschetti.xml;
 
 
 import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Stack;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,10 +14,14 @@ import java.util.Vector;
 
 import java.util.Set;
 import java.util.Iterator;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Arrays;
 
-import java.math.BigDecimal;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import java.lang.reflect.Constructor;
 
 /**
  *  HashHandler implements and extends the standard JDK
@@ -208,23 +214,6 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
      */
 
 
-    private static int[] dm;
-    private static int[] smm;
-    private static int[] msmm;
-
-    private static int[] tzsmm;
-    private static int[] tzmsmm;
-
-    static {
-	dm = new int[] { 0,1,2,3,  5,6,  8,9};
-	smm = new int[] { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18 };
-	tzsmm = new int[] { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18, 20,21, 23,24};
-
-	msmm =  new int[] { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18,  20,21,22};
-	tzmsmm = new int[] { 0,1,2,3,  5,6,  8,9,  11,12,  14,15,  17,18,  20,21,22, 24,25, 27,28};
-
-    }
-	
     private static final String default_apfx = "__attributes_";
 
     private String apfx = default_apfx;
@@ -232,10 +221,34 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
     //private static final String apfx = "@";
     //private String apfx = "__attributes_";
 
+    /**
+     *  apfx + tag is asked for on every element end, so remember the
+     *  answers rather than concatenating each time.  Bounded in case of
+     *  documents with an absurd number of distinct tags.
+     */
+    private static final int MAX_ATTR_NAMES = 4096;
+    private HashMap<String,String> attrNames = new HashMap<String,String>();
+
     private String makeAttrName(String tag) {
-	return apfx + tag;
+	String atag = attrNames.get(tag);
+	if(atag == null) {
+	    atag = apfx + tag;
+	    if(symbols != null) {
+		atag = symbols.intern(atag);
+	    }
+	    if(attrNames.size() < MAX_ATTR_NAMES) {
+		attrNames.put(tag, atag);
+	    }
+	}
+	return atag;
     }
 
+    /**
+     *  If set, all tag and attribute names go thru here so that
+     *  repeated names share one String instance.
+     */
+    private SymbolTable symbols = null;
+
 
     private boolean accumulating = false;
 	
@@ -247,6 +260,41 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 
     private Map priorAttr = null;
     private String priorTag = null;
+
+    /**
+     *  Attribute storage (see compactAttributes, dropAttributes).  In
+     *  compact mode priorCompact is the finished attribute map for
+     *  priorTag (or null) and priorAttr is not used.
+     */
+    private boolean compactAttrs = false;
+    private boolean dropAttrs = false;
+    private AttributeMap priorCompact = null;
+
+    /**
+     *  Sibling run tracking.  runs[n] belongs to the map at stack depth
+     *  n and remembers the List-ified values (and attribute List, if
+     *  known) of the tag most recently List-ified in it, so a long run
+     *  of <tt>&lt;row&gt;</tt> goes straight onto the end of its Lists
+     *  without any map lookups.  noAttrs means the map is known to
+     *  have no attribute entry for tag yet.
+     *
+     *  For deListify:  walked says whether XMLUtils.deListify() would
+     *  look inside this map, and wrappers are its <i>name</i>_LIST
+     *  keys that hold a single Map so far (promotion candidates for
+     *  when the map is complete).
+     */
+    private static final class Run {
+	Map map;
+	String tag;
+	List values;
+	List attrs;
+	boolean noAttrs;
+	boolean walked;
+	ArrayList<String> wrappers;
+    }
+    private Run[] runs = new Run[16];
+
+    private boolean deListify = false;
     private Map currentMap = null;
 
     private boolean storeBlanks = true;
@@ -263,20 +311,81 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
     private char[] numbuf = new char[NUMBUF_SIZE];
 
     private boolean convertDates = false; 
+    private DateSniffer dates = new DateSniffer(false);
+    private boolean javaTime = false;
 
-    private Class mapType;
+    /**
+     *  lazyConversion is the setting; lazy is the converter for the
+     *  document currently being parsed (null if not lazy).
+     */
+    private boolean lazyConversion = false;
+    private LazyConverter lazy = null;
 
+    private ValueCache valueCache = null;
 
+    /**
+     *  Where every Map in the output comes from.  Resolved ONCE up front
+     *  so we are not doing Class.newInstance() per element.
+     */
+    private Supplier<Map<String,Object>> mapFactory;
 
-    private void init(boolean storeBlanks, Class mapType) {
-	
-	this.mapType = mapType;
+    /**
+     *  Record mode.  recordPath is the split-up absolute path of the
+     *  repeating element; depth is the number of currently open elements
+     *  and matched is how many of those (from the top) line up with
+     *  recordPath.  When matched == recordPath.length and the element
+     *  closes, we have a complete record.
+     */
+    private String[] recordPath = null;
+    private Consumer<Map<String,Object>> recordConsumer = null;
+    private int depth = 0;
+    private int matched = 0;
 
-	try {
-	    root = (Map) this.mapType.newInstance();
-	} catch(Exception e) {
-	    // ?!?  TBD here...
+    /**
+     *  Splice mode (see ParallelParser).  A <tt>&lt;?xmlutils-splice N?&gt;</tt>
+     *  PI in the input is replaced by record group N, asked for thru
+     *  splicer and inserted as if the records had been parsed right there.
+     */
+    static final String SPLICE_TARGET = "xmlutils-splice";
+    private IntFunction<List<Map<String,Object>>> splicer = null;
+    private String spliceTag = null;
+
+    /**
+     *  Projection and type hints (see setProjection, setTypeHints).
+     *  nodes[d+1] is the PathTrie node
+     *  for the open element at depth d (nodes[0] is the root) and
+     *  inside[d+1] says whether that element is at or under an include
+     *  path.  skipping counts open elements within a skipped subtree;
+     *  while it is &gt; 0 events are dropped on the floor.
+     */
+    private PathTrie paths = null;
+    private boolean filtering = false;
+    private boolean stopWhenSeen = false;
+    private PathTrie.Node[] nodes = new PathTrie.Node[16];
+    private boolean[] inside = new boolean[16];
+    private String[] uris = new String[16];
+    private String[] names = new String[16];
+    private int skipping = 0;
+    private SniffProfile profile = null;
+    private boolean[] seen = null;
+    private int seenCount = 0;
+    private boolean stopped = false;
+
+    /**
+     *  Thrown to get the SAX parser to quit once all includes are in.
+     */
+    @SuppressWarnings("serial")
+    private static final class StopParsing extends SAXException {
+	StopParsing() {
+	    super("all included paths seen");
 	}
+    }
+
+
+
+    private void init(boolean storeBlanks, Supplier<Map<String,Object>> mapFactory) {
+	
+	this.mapFactory = mapFactory;
 
 	// root.put("__name", "root"); // MARK
 
@@ -287,9 +396,54 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 	namespaces = new HashMap();
 	priorAttr = new HashMap();
 
-	currentMap = root;
-
 	this.storeBlanks = storeBlanks;
+
+	reset();
+    }
+
+
+    /**
+     *  Get ready for another document.   Configuration (storeBlanks,
+     *  convertNumbers, attribute prefix, etc.) is kept, as are the
+     *  internal buffers; only the parse state is cleared and a new root
+     *  map is started.   This lets a single HashHandler be used for many
+     *  parses without paying the setup cost each time.  Note the
+     *  namespaces map is cleared, not replaced, so grab what you need
+     *  from getNamespaces() before calling reset().
+     */
+    public void reset() {
+	lazy = null;
+	root = newMap();
+
+	stack.clear();
+	carr.setLength(0);
+	namespaces.clear();
+	clearAttrs();
+
+	for(Run r : runs) {
+	    if(r != null) {
+		r.map = null; // don't pin the last document
+	    }
+	}
+
+	currentMap = root;
+	priorTag = null;
+	accumulating = false;
+	run().walked = deListify;
+
+	depth = 0;
+	matched = 0;
+
+	skipping = 0;
+	seenCount = 0;
+	stopped = false;
+	if(seen != null) {
+	    Arrays.fill(seen, false);
+	}
+	if(paths != null) {
+	    nodes[0] = paths.root;
+	    inside[0] = paths.includes() == 0;
+	}
     }
 
     /**
@@ -304,7 +458,7 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
      *  </pre>
      */
     public HashHandler() {
-	init(true, java.util.HashMap.class);
+	init(true, factoryFor(java.util.HashMap.class));
     }
 
     /**
@@ -331,7 +485,7 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
      *
      */
     public HashHandler(boolean storeBlanks) {
-	init(storeBlanks, java.util.HashMap.class);
+	init(storeBlanks, factoryFor(java.util.HashMap.class));
     }
 
 
@@ -339,10 +493,227 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
      *  Tell us what type of Maps you want
      */
     public HashHandler(boolean storeBlanks, Class mapType) {
-	init(storeBlanks, mapType);
+	init(storeBlanks, factoryFor(mapType));
+    }
+
+
+    /**
+     *  Tell us exactly how to make Maps, e.g. <tt>CompactMap::new</tt> or
+     *  <tt>() -&gt; new HashMap(4)</tt>
+     */
+    public HashHandler(boolean storeBlanks, Supplier<Map<String,Object>> mapFactory) {
+	init(storeBlanks, mapFactory);
+    }
+
+
+    /**
+     *  Turn a Map class into a Supplier.  The common ones get a direct
+     *  constructor reference; anything else gets its no-arg Constructor
+     *  looked up once.
+     */
+    static Supplier<Map<String,Object>> factoryFor(Class mapType) {
+	if(mapType == null || mapType == java.util.HashMap.class) {
+	    return HashMap::new;
+	}
+	if(mapType == java.util.LinkedHashMap.class) {
+	    return java.util.LinkedHashMap::new;
+	}
+	if(mapType == CompactMap.class) {
+	    return CompactMap::new;
+	}
+
+	final Constructor ctor;
+	try {
+	    ctor = mapType.getConstructor();
+	} catch(Exception e) {
+	    throw new IllegalArgumentException("cannot use " + mapType.getName() + " as a Map type: " + e);
+	}
+
+	return () -> {
+	    try {
+		return (Map<String,Object>) ctor.newInstance();
+	    } catch(Exception e) {
+		throw new IllegalStateException("cannot instantiate " + mapType.getName() + ": " + e);
+	    }
+	};
+    }
+
+
+    private Map newMap() {
+	Map m = mapFactory.get();
+	if(lazy != null) {
+	    return new LazyMap(m, lazy);
+	}
+	return m;
+    }
+
+    private List newList() {
+	if(lazy != null) {
+	    return new LazyMap.LazyList(lazy);
+	}
+	return new ArrayList();
+    }
+
+
+    /**
+     *  get() and remove() for our own bookkeeping.  On a LazyMap these
+     *  must not trigger conversion of the values.
+     */
+    private static Object peek(Map m, Object key) {
+	if(m instanceof LazyMap) {
+	    return ((LazyMap)m).getRaw(key);
+	}
+	return m.get(key);
+    }
+
+    private static Object take(Map m, Object key) {
+	if(m instanceof LazyMap) {
+	    return ((LazyMap)m).removeRaw(key);
+	}
+	return m.remove(key);
+    }
+
+
+
+    /**
+     *  Turns on record mode.  Each time an element at recordPath (e.g.
+     *  <tt>/data/item</tt>, local names only, leading slash optional)
+     *  closes, it is pulled OUT of its containing map and handed to the
+     *  consumer in a fresh map that looks exactly like what parsing that
+     *  element as a standalone document would produce, i.e.
+     *  <pre>
+     *     { item: {...}, __attributes_item: {...} }
+     *  </pre>
+     *  Because the record is removed from the tree before the next one
+     *  starts, memory use stays flat no matter how many records there are.
+     *  The root map will only contain the "skeleton" of the document,
+     *  i.e. the non-record material.  A null recordPath turns record
+     *  mode back off.
+     */
+    public void setRecordHandler(String recordPath, Consumer<Map<String,Object>> consumer) {
+	if(recordPath == null) {
+	    this.recordPath = null;
+	    this.recordConsumer = null;
+	} else {
+	    this.recordPath = splitPath(recordPath);
+	    this.recordConsumer = consumer;
+	}
+    }
+
+
+    /**
+     *  "/data/item" or "data/item" both become { "data", "item" }
+     */
+    static String[] splitPath(String path) {
+	if(path == null) {
+	    throw new IllegalArgumentException("path cannot be null");
+	}
+	String p = path.startsWith("/") ? path.substring(1) : path;
+	String[] segs = p.split("/");
+	for(int kk = 0; kk < segs.length; kk++) {
+	    if(segs[kk].length() == 0) {
+		throw new IllegalArgumentException("bad path: [" + path + "]");
+	    }
+	}
+	return segs;
+    }
+
+
+    /**
+     *  Turn on splice mode.  tag is the (local) name of the records,
+     *  i.e. the last component of the record path.
+     */
+    void setSplicer(String tag, IntFunction<List<Map<String,Object>>> splicer) {
+	this.spliceTag = (symbols != null) ? symbols.intern(tag) : tag;
+	this.splicer = splicer;
+    }
+
+
+    /**
+     *  Only build the parts of the document you need.  includes and
+     *  excludes are absolute element paths (local names, like record
+     *  paths).   If there are includes, an element is kept only if it is
+     *  at or under an include path or on the way to one; anything else
+     *  is skipped.   Excluded elements are always skipped.  Skipped
+     *  subtrees cost next to nothing: no maps, no attribute copies, no
+     *  text.   Either collection may be null or empty.
+     *
+     *  If stopWhenIncludesSeen is true, parsing ends as soon as one of
+     *  each include path has been completely read; repeats after that
+     *  are not seen.  Handy for picking a few header fields off the
+     *  front of a big document.
+     */
+    public void setProjection(Collection<String> includes, Collection<String> excludes, boolean stopWhenIncludesSeen) {
+	if(paths == null) {
+	    paths = new PathTrie();
+	}
+	if(includes != null) {
+	    for(String p : includes) {
+		paths.include(p);
+	    }
+	}
+	if(excludes != null) {
+	    for(String p : excludes) {
+		paths.exclude(p);
+	    }
+	}
+
+	filtering = paths.includes() > 0 || (excludes != null && !excludes.isEmpty());
+	stopWhenSeen = stopWhenIncludesSeen && paths.includes() > 0;
+	seen = stopWhenSeen ? new boolean[paths.includes()] : null;
+
+	reset();
+    }
+
+
+    /**
+     *  Declare how leaf values at given absolute paths are converted,
+     *  instead of leaving it up to convertNumbers / convertDates.  Values
+     *  are a ValueConverter or one of String, Integer, Long, Double,
+     *  BigDecimal, Boolean (or the primitive classes), java.util.Date, or
+     *  java.time.temporal.Temporal for the java.time flavors of the
+     *  convertDates formats.   Text that does not fit the type is kept
+     *  as a String.
+     */
+    public void setTypeHints(Map<String,?> hints) {
+	if(paths == null) {
+	    paths = new PathTrie();
+	}
+
+	DateSniffer utilDates = new DateSniffer(false);
+	DateSniffer javaDates = new DateSniffer(true);
+
+	for(Map.Entry<String,?> e : hints.entrySet()) {
+	    paths.add(e.getKey()).converter = ValueConverters.forType(e.getValue(), utilDates, javaDates);
+	}
+
+	reset();
+    }
+
+
+    /**
+     *  Adaptive sniffing: learn which paths never convert to numbers or
+     *  dates and stop sniffing them.  Only matters if convertNumbers
+     *  and/or convertDates is on.  The profile may be shared.  null
+     *  turns it off.
+     */
+    public void setSniffProfile(SniffProfile profile) {
+	this.profile = profile;
+	if(profile != null && paths == null) {
+	    paths = new PathTrie();
+	}
+	reset();
     }
 
 
+    /**
+     *  True if the last parse quit early because stopWhenIncludesSeen
+     *  was satisfied.
+     */
+    public boolean stoppedEarly() {
+	return stopped;
+    }
+
 
     public void emitNamespace(String namespaceField) {
 	this.namespaceField = namespaceField;
@@ -368,6 +739,67 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 	this.convertDates = yorn;
     }
 
+    /**
+     *  If javaTime is true, convertDates produces java.time objects
+     *  (LocalDate, LocalDateTime, Instant, OffsetDateTime) instead of
+     *  java.util.Date.   See DateSniffer.
+     */
+    public void useJavaTime(boolean javaTime) {
+	this.javaTime = javaTime;
+	this.dates = new DateSniffer(javaTime);
+    }
+
+    /**
+     *  If true (and convertNumbers and/or convertDates is on), leaves
+     *  are stored as raw text in LazyMaps and only converted on first
+     *  access.  Takes effect at the next startDocument().
+     */
+    public void setLazyConversion(boolean yorn) {
+	this.lazyConversion = yorn;
+    }
+
+    /**
+     *  If size &gt; 0, short leaf values (up to ValueCache.MAX_LENGTH
+     *  chars) are deduplicated thru a cache of (about) that many slots
+     *  so that repeated values share one String / Integer / etc.
+     *  instance.   0 turns it off.
+     */
+    public void setValueDedupCache(int size) {
+	this.valueCache = (size > 0) ? new ValueCache(size) : null;
+    }
+
+
+    /**
+     *  If true, attributes are stored as immutable AttributeMaps built
+     *  directly from the parser's Attributes, instead of being copied
+     *  into a scratch HashMap and then copied again into a new HashMap
+     *  for the output.
+     */
+    public void compactAttributes(boolean yorn) {
+	this.compactAttrs = yorn;
+    }
+
+    /**
+     *  If true, <i>name</i>_LIST wrapper maps (as written by Map2XML)
+     *  are collapsed as the document is built, giving the same result
+     *  as calling XMLUtils.deListify() on the output afterwards but
+     *  without the second walk over the whole tree.  In record mode
+     *  each record comes out as if deListify() had been called on it.
+     */
+    public void deListify(boolean yorn) {
+	this.deListify = yorn;
+	reset();
+    }
+
+
+    /**
+     *  If true, attributes are ignored entirely; there will be no
+     *  <tt>__attributes_</tt> entries at all.
+     */
+    public void dropAttributes(boolean yorn) {
+	this.dropAttrs = yorn;
+    }
+
 
     public void setAttributePrefix(String apfx) {
 	if(apfx == null) {
@@ -375,9 +807,40 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 	} else {
 	    this.apfx = apfx;
 	}
+	attrNames.clear();
     }
 
 
+    /**
+     *  Canonicalize all tag and attribute names (and the derived
+     *  attribute keys) thru this table.  Pass null to turn off.
+     *  The table may be shared with other HashHandlers.
+     */
+    public void setSymbolTable(SymbolTable symbols) {
+	this.symbols = symbols;
+	attrNames.clear();
+    }
+
+
+
+    public void startDocument() {
+	if(lazyConversion && (convertNumbers || convertDates)) {
+	    // Fresh converter per document; maps from earlier documents
+	    // hang on to their own.
+	    lazy = new LazyConverter(convertNumbers, useBigDecimal, convertDates, javaTime);
+	    root = newMap();
+	    currentMap = root;
+	    run().walked = deListify;
+	}
+    }
+
+
+    public void endDocument() {
+	if(deListify && currentMap == root) {
+	    promoteWrappers();
+	}
+    }
+
 
     public Map<String,Object> getRootMap() {
 	return (Map<String,Object>)root;
@@ -402,12 +865,15 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
      *  If Attributes a has length 0, then no problem; the target map will be
      *  of size 0.
      */
-    private static void saveAttrs(Map m, Attributes a) {
+    private void saveAttrs(Map m, Attributes a) {
 	m.clear();
 
 	int n = a.getLength();
 	for(int kk = 0; kk < n; kk++) {
 	    String ln = a.getLocalName(kk);
+	    if(symbols != null) {
+		ln = symbols.intern(ln);
+	    }
 	    String vv = a.getValue(kk);
 	    //String uri = a.getURI(kk);
 
@@ -434,6 +900,38 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 
 
 
+    /**
+     *  Capture the attributes of the element just started, according to
+     *  the attribute storage mode.
+     */
+    private void captureAttrs(Attributes a) {
+	if(dropAttrs) {
+	    return;
+	}
+	if(compactAttrs) {
+	    priorCompact = AttributeMap.of(a, symbols);
+	} else {
+	    saveAttrs(priorAttr, a);
+	}
+    }
+
+    /**
+     *  The captured attributes as they go into the output (a new Map,
+     *  not the scratch one), or null if there are none.
+     */
+    private Map takeAttrs() {
+	if(compactAttrs) {
+	    return priorCompact;
+	}
+	return (priorAttr.size() > 0) ? new HashMap(priorAttr) : null;
+    }
+
+    private void clearAttrs() {
+	priorAttr.clear();
+	priorCompact = null;
+    }
+
+
     /**
      *  attrs can be null and may need to be if attributes have been List-ified
      *
@@ -442,7 +940,21 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
      *  see if the attribute should be set up at all.
      */
     private void putAttrsInMap(Map target, String tag, Map attrs) {
-	
+
+	Run r = (target == currentMap) ? run() : null;
+	if(r != null && r.values != null && r.tag.equals(tag)) {
+	    // Inside a known run; nothing to look up.
+	    if(r.attrs != null) {
+		r.attrs.add(attrs);
+		return;
+	    }
+	    if(r.noAttrs && attrs == null) {
+		return;
+	    }
+	} else {
+	    r = null;
+	}
+
 	String atag = makeAttrName(tag);
 
 	/**
@@ -453,9 +965,9 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 	 *  is null, then we have to "backfill" the attr List with nulls for
 	 *  items 0, 1, and 2.
 	 */
-	Object o = target.get(atag);
+	Object o = peek(target, atag);
 	
-	Object o2 = target.get(tag); // The peer data to the attr
+	Object o2 = peek(target, tag); // The peer data to the attr
 
 	if(o == null) {
 
@@ -471,19 +983,14 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 
 		} else if(o2 instanceof List) {
 
-		    List a = new ArrayList();
-		    
 		    // The data has been List-ified.  Get length
-		    // and fill an attr list MINUS ONE:
-		    
+		    // and start an attr list with that MINUS ONE
+		    // nulls (which PaddedList does not really store):
+
 		    int len = ((List)o2).size();
-		    
-		    for(int kk = 0; kk < len - 1; kk++) {
-			a.add(null);
-		    }
-		    
-		    a.add(attrs);
-		    
+
+		    List a = new PaddedList(len - 1, attrs);
+
 		    setMap("Q", target, atag, a);
 		    
 		} else { 
@@ -518,265 +1025,314 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 		setMap("R", target, atag, a);
 	    }
 	}
-    }
-
 
+	if(r != null) {
+	    // Now we know where the attrs for this run stand:
+	    Object o3 = peek(target, atag);
+	    if(o3 instanceof List) {
+		r.attrs = (List)o3;
+	    } else {
+		r.noAttrs = (o3 == null);
+	    }
+	}
+    }
 
-    public void startElement(String uri, String localName, String qName, Attributes attr) {
-	//System.out.println("** startElement " + uri + " " + localName + "; attrs " + attr.getLength() + "; accum = " + accumulating);
 
-	if(accumulating == false) {
-	    accumulating = true;
-	    priorTag = localName; 
+    /**
+     *  The Run for currentMap.
+     */
+    private Run run() {
+	int lvl = stack.size();
+	if(lvl >= runs.length) {
+	    runs = Arrays.copyOf(runs, lvl * 2);
+	}
+	Run r = runs[lvl];
+	if(r == null) {
+	    r = runs[lvl] = new Run();
+	}
+	if(r.map != currentMap) {
+	    r.map = currentMap;
+	    r.tag = null;
+	    r.values = null;
+	    r.attrs = null;
+	    r.noAttrs = false;
+	    r.walked = false;
+	    if(r.wrappers != null) {
+		r.wrappers.clear();
+	    }
+	}
+	return r;
+    }
 
-	    //System.out.println("  ++ copy attrs for " + localName + " to priorAttr");
-	    saveAttrs(priorAttr, attr);
-    
 
-	} else {   // accumulating = true thus we got a <start> within another <start>
+    static boolean isWrapper(String tag) {
+	return tag.endsWith("_LIST");
+    }
 
-	    carr.setLength(0); // dump any accumulated stuff...
 
-	    Map newMap = null;
+    /**
+     *  currentMap is complete; do what deListify() would do to its
+     *  wrapper entries.
+     */
+    private void promoteWrappers() {
+	Run r = run();
+	if(r.wrappers == null || r.wrappers.isEmpty()) {
+	    return;
+	}
 
-	    try {
-		newMap = (Map) this.mapType.newInstance();
-	    } catch(Exception e) {
-		// ???  TBD Need to do something here...
+	boolean collides = false;
+	for(int kk = 0; kk < r.wrappers.size() && !collides; kk++) {
+	    String z = unwrapped(r.wrappers.get(kk));
+	    collides = peek(currentMap, z) != null;
+	    for(int jj = 0; jj < kk && !collides; jj++) {
+		collides = z.equals(unwrapped(r.wrappers.get(jj)));
 	    }
+	}
 
-	    // newMap.put("__name", priorTag); // MARK
-	    
-	    // System.out.println("current map is " + currentMap.get("__name") + ", namespace " + currentMap.get("__namespace") + "; " + priorTag + " will be new map " + newMap.get("__name") + " in it.");
-
-	    Object o = currentMap.get(priorTag);
-
-	    if(o != null) {
+	if(!collides) {
+	    for(String key : r.wrappers) {
+		promote(currentMap, key);
+	    }
+	} else {
+	    // Both foo and foo_LIST are here (or foo_LIST and
+	    // foo_LIST_LIST).  deListify() overwrites foo and, if foo
+	    // comes after foo_LIST in key order, then walks the promoted
+	    // List too; go thru the keys the same way so the result is
+	    // the same.
+	    HashSet<String> moved = new HashSet<String>();
+	    for(Object k : new ArrayList(currentMap.keySet())) {
+		if(r.wrappers.contains(k)) {
+		    String z = promote(currentMap, (String)k);
+		    if(z != null) {
+			moved.add(z);
+		    }
+		} else if(moved.contains(k)) {
+		    DeListifier.walk(peek(currentMap, k));
+		}
+	    }
+	}
+	r.wrappers.clear();
+    }
 
-		//System.out.println("!!! dupe detected for " + priorTag);
 
-		if(o instanceof List) {
-		    ((List)o).add(newMap);
+    private static String unwrapped(String key) {
+	return key.substring(0, key.indexOf("_LIST"));
+    }
 
-		} else {   // was if(o instanceof Map) {
-		    
-		    // Not yet rejiggered!
-		    //System.out.println("!!! is Map; must rejigger");
-		    
-		    List v = new ArrayList();
-		    //List v = new Vector();
-		    
-		    v.add(o);  // it could be a Map OR a simple String!
-		    v.add(newMap);
-		    
-		    //currentMap.put(priorTag, v);
-		    setMap("C", currentMap, priorTag, v);
 
+    /**
+     *  The deListify() rule:  if m[key] is a Map holding only a List
+     *  named for the key minus _LIST, that List replaces it.  Returns
+     *  that name, or null if m was left alone.
+     */
+    private static String promote(Map m, String key) {
+	Object ov = peek(m, key);
+	if(ov instanceof Map) {
+	    Map sub = (Map)ov;
+	    if(sub.size() == 1) {
+		String z = unwrapped(key);
+		Object ov2 = peek(sub, z);
+		if(ov2 instanceof List) {
+		    setMap("D", m, z, ov2);
+		    take(m, key);
+		    return z;
 		}
+	    }
+	}
+	return null;
+    }
 
-	    } else {
 
-		//currentMap.put(priorTag, newMap); 	   
-		setMap("F", currentMap, priorTag, newMap); 	   
-	    }
 
+    public void startElement(String uri, String localName, String qName, Attributes attr) {
+	//System.out.println("** startElement " + uri + " " + localName + "; attrs " + attr.getLength() + "; accum = " + accumulating);
 
+	if(skipping > 0) {
+	    skipping++;
+	    return;
+	}
 
-	    Map safe_prior_attrs = null;
+	if(symbols != null) {
+	    localName = symbols.intern(localName);
+	}
 
-	    if(priorAttr.size() > 0) {
-		// Overwrite null with new map....
-		safe_prior_attrs = new HashMap(priorAttr);		
+	if(paths != null && !enter(uri, localName)) {
+	    skipping = 1;
+	    if(accumulating) {
+		// The parent has element content after all, even if
+		// we are not keeping it:
+		nest();
+		clearAttrs();
+		accumulating = false;
 	    }
+	    return;
+	}
 
-	    // OK to call this with safe_prior_attrs = null or not:
-	    putAttrsInMap(currentMap, priorTag, safe_prior_attrs);
+	if(recordPath != null) {
+	    if(matched == depth && depth < recordPath.length
+	       && recordPath[depth].equals(localName)) {
+		matched++;
+	    }
+	}
+	depth++;
 
-	    saveAttrs(priorAttr, attr); // Get the NEW attr for this tag
+	if(accumulating == false) {
+	    accumulating = true;
+	    priorTag = localName; 
+
+	    //System.out.println("  ++ copy attrs for " + localName + " to priorAttr");
+	    captureAttrs(attr);
+    
 
-	    stack.push(currentMap);
+	} else {   // accumulating = true thus we got a <start> within another <start>
 
-	    currentMap = newMap;
+	    nest();
 
-	    //System.out.println("current map is now " + currentMap.get("__name"));
-	    //System.out.println("\n");
+	    captureAttrs(attr); // Get the NEW attr for this tag
 
 	    priorTag = localName; // new String(localName);  // TBD ... copy...?
 	}
     }
-	
 
-    public void endElement(String uri, String localName, String qName) {
-	//System.out.println("** endElement " + uri + " " + localName + "; accum = " + accumulating);
 
-	if(accumulating == true) {
-	    //
-	    //  This is a scalar end tag, i.e. where the prior tag is a matching
-	    //  start tag:
-	    //                    <a>value</a>
-	    //
-	    Object value = null;
+    /**
+     *  priorTag turns out to be a structure, not a value:  dump any
+     *  accumulated chars, hang a new Map off currentMap under priorTag
+     *  (List-ifying if needed), attach priorTag's attrs, and descend into
+     *  the new Map.  Still accumulating when done.
+     */
+    private void nest() {
+	carr.setLength(0); // dump any accumulated stuff...
 
-	    if(carr.length() > 0 || storeBlanks == true) {
+	Map newMap = newMap();
 
-		Object o = currentMap.get(priorTag);
+	// newMap.put("__name", priorTag); // MARK
 
-		String s6 = carr.toString();
+	addValue(priorTag, newMap);
 
-		/*
-		  ATTENTION!
-		  Because we cannot guarantee that 20160405 is YYYYMMDD
-		  vs. YYYYDDMM, we will let convertNumbers gobble it up!
-		  The Date sniffer will look for YYYY-MM-DD which clearly
-		  is not an int!
-		*/
-		if(convertNumbers) {
-		    boolean isNumber = true;
-		    boolean isFloat = false;
+	if(!dropAttrs) {
+	    // OK to call this with null attrs or not:
+	    putAttrsInMap(currentMap, priorTag, takeAttrs());
+	}
 
-		    int end = carr.length();
-		    if(end > NUMBUF_SIZE) {
-			numbuf = new char[end + 1];
-		    }
-		    
-		    carr.getChars(0, end, numbuf, 0);
+	boolean walked = false;
+	if(deListify) {
+	    // deListify() looks inside everything except a lone
+	    // wrapper Map.   A record is deListified on its own.
+	    Run pr = run();
+	    boolean listed = pr.values != null && pr.tag.equals(priorTag);
+	    if(recordPath != null && matched == recordPath.length && depth - 1 == recordPath.length) {
+		walked = !isWrapper(priorTag);
+	    } else {
+		walked = pr.walked && (listed || !isWrapper(priorTag));
+	    }
+	}
 
-		    //System.out.println("candidate: " + carr);
+	stack.push(currentMap);
 
-		    boolean foundDot = false;
+	currentMap = newMap;
 
-		    int jj = 0;
-		    int start = 0;
+	if(deListify) {
+	    run().walked = walked;
+	}
+    }
 
-		    if(numbuf[0] == '-') {
-			if(end == 1) { // end is length, NOT pos...  
-			    // Just a dash; not a number!
-			    isNumber = false;
-			} else {
-			    jj = 1;
-			    start = 1;
-			}
-		    }
 
-		    for(; jj < end; jj++) {
-			if(numbuf[jj] == '.') {
-			    if(foundDot == true) { // more than one dot!
-				//System.out.println("  BAD more than one dot");
-				isNumber = false;
-				break;
-			    }
-			    foundDot = true;
-			    isFloat = true;
-			} else if(numbuf[jj] < '0' || numbuf[jj] > '9') {
-			    //System.out.println("  BAD not 0-9");
-			    isNumber = false;
-			    break;
-			}
-		    }
+    /**
+     *  Put value into currentMap under tag.  If there is already
+     *  something there, List-ify.
+     */
+    private void addValue(String tag, Object value) {
+	Run r = run();
+	if(r.values != null && r.tag.equals(tag)) {
+	    r.values.add(value);
+	    return;
+	}
 
-		    // If isNumber = true, then double check that
-		    // we don't have leading zero, e.g.
-		    // 0        // OK!  Just integer 0
-		    // 00232    // bad; treat as string
-		    // 00.232   // bad; treat as string
-		    // 0.123,   // OK! treat as float
-		    // .123,    // OK! treat as float
-		    // .        // bad; treat as string
-		    if(isNumber == true) {
-			if(numbuf[start] == '0' && end > 1 && numbuf[start+1] != '.') {
-			    //System.out.println("  BAD leading zeroes");
-			    isNumber = false;
-			    isFloat = false;
-			} else if(numbuf[start] == '.' && end == 1) {
-			    //System.out.println("  BAD solo dot");
-			    isNumber = false;
-			    isFloat = false;
-			}
-		    }
+	Object o = peek(currentMap, tag);
 
-		    if(isNumber == true && isFloat == true) {
-			try {
-			    if(useBigDecimal) {
-				value = new BigDecimal(s6);
-			    } else {
-				value = Double.parseDouble(s6);
-			    }
-
-			} catch(Exception e) {
-			    System.out.println("float parse failure, tag " + localName);
-			}
-			//System.out.println("  OK double: " + value);
-
-		    } else if(isNumber == true) {
-			try {
-			    double dd4 = Double.parseDouble(s6);
-
-			    if(dd4 > Long.MAX_VALUE || dd4 < Long.MIN_VALUE) {
-				value = dd4;
-			    } else {
-				if(dd4 > Integer.MAX_VALUE || dd4 < Integer.MIN_VALUE) {
-				    value = Long.parseLong(s6);
-				} else {
-				    value = (int)dd4;
-				}
-				//Integer.parseInt(s6);
-			    }
-			    //System.out.println("  OK int: " + value);
-			} catch(Exception e) {
-			    System.out.println("double/long parse failure of [" + s6 + "], tag " + localName);
-			}
-		    } 
+	if(o != null) {
+	    List v;
 
+	    if(o instanceof List) {
+		v = (List)o;
+		v.add(value);
+
+	    } else {
+		// Not yet rejiggered!
+		v = newList();
+
+		v.add(o);  // it could be a Map OR a simple String!
+		v.add(value);
+
+		setMap("C", currentMap, tag, v);
+
+		if(deListify && r.walked && o instanceof Map && isWrapper(tag)) {
+		    // Was a lone wrapper (left alone); now it is a
+		    // List element, and deListify() walks those.
+		    DeListifier.walk(o);
 		}
-		
-		if(value == null && convertDates == true) {
-		    value = sniffString(s6);
-		}
+	    }
+
+	    // Follow this run from here on:
+	    r.tag = tag;
+	    r.values = v;
+	    r.attrs = null;
+	    r.noAttrs = false;
+
+	} else {
+	    setMap("F", currentMap, tag, value);
 
-		if(value == null) {
-		    value = s6;
+	    if(deListify && r.walked && value instanceof Map && isWrapper(tag)) {
+		if(r.wrappers == null) {
+		    r.wrappers = new ArrayList<String>(2);
 		}
+		r.wrappers.add(tag);
+	    }
+	}
+    }
+	
 
-		if(o != null) {
-		    // System.out.println("!!! dupe detected for " + localName);
+    public void endElement(String uri, String localName, String qName)
+	throws SAXException
+    {
+	//System.out.println("** endElement " + uri + " " + localName + "; accum = " + accumulating);
 
-		    // Need to List-ify or not, but either way, you must add
-		    // a real value or null (empty tag)
+	if(skipping > 0) {
+	    skipping--;
+	    return;
+	}
 
-		    if(o instanceof List) {
-			((List)o).add(value); // was localName?!?
+	depth--;
 
-		    } else {
-			//System.out.println("!!! is not List; must rejigger");
+	boolean isRecord = false;
+	if(matched > depth) {
+	    isRecord = (matched == recordPath.length);
+	    matched = depth;
+	}
 
-			List v = new ArrayList();
-			//List v = new Vector();
-		    
-			v.add(o);
-			v.add(value);
-		    
-			//currentMap.put(localName, v);
-			setMap("G", currentMap, localName, v);
-		    }
-		
-		} else { // Not a dupe.
-		
-		    //currentMap.put(localName, value);
-		    setMap("H", currentMap, localName, value);
-		}
+	if(accumulating == true) {
+	    //
+	    //  This is a scalar end tag, i.e. where the prior tag is a matching
+	    //  start tag:
+	    //                    <a>value</a>
+	    //
+	    // Same name as the start tag, which was already interned:
+	    localName = priorTag;
 
+	    if(carr.length() > 0 || storeBlanks == true) {
+		// Need to List-ify or not, but either way, you must add
+		// a real value or null (empty tag)
+		addValue(localName, leafValue());
 	    }
 
 
-	    if(priorAttr.size() > 0) {
-		// Must make a copy!  Be careful!
-		Map am = new HashMap(priorAttr);
-		putAttrsInMap(currentMap, localName, am);
-	    } else {
-		putAttrsInMap(currentMap, localName, null);
+	    if(!dropAttrs) {
+		// takeAttrs() makes a copy of the scratch map, if any.
+		putAttrsInMap(currentMap, localName, takeAttrs());
 	    }
 
-	    priorAttr.clear();
+	    clearAttrs();
 		
 	    accumulating = false;
 	    carr.setLength(0);
@@ -796,17 +1352,264 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
 		}
 	    }
 
+	    if(deListify) {
+		promoteWrappers();
+	    }
+
 	    // System.out.println("set map " + currentMap.get("__name") + " to namespace " + currentMap.get("__namespace"));
 
-	    priorAttr.clear();
+	    clearAttrs();
 
 	    currentMap = (Map)stack.pop();
 
+	    // Only a record needs the canonical name from here on:
+	    if(isRecord && symbols != null) {
+		localName = symbols.intern(localName);
+	    }
+
 	    // System.out.println("popping; current map is now: " + currentMap.get("__name"));
 	}
+
+	if(isRecord) {
+	    emitRecord(localName);
+	}
+
+	if(stopWhenSeen && !stopped) {
+	    PathTrie.Node n = nodes[depth + 1];
+	    if(n != null && n.includeId >= 0 && !seen[n.includeId]) {
+		seen[n.includeId] = true;
+		if(++seenCount == seen.length) {
+		    stopped = true;
+		    // Close out the open elements so the tree is
+		    // finished exactly as if we had read to the end:
+		    while(depth > 0) {
+			endElement(uris[depth], names[depth], null);
+		    }
+		    endDocument();
+		    throw new StopParsing();
+		}
+	    }
+	}
+    }
+
+
+    /**
+     *  Path bookkeeping for a new element; false means skip it.
+     */
+    private boolean enter(String uri, String localName) {
+	PathTrie.Node parent = nodes[depth];
+	PathTrie.Node n = (parent == null) ? null : parent.kids.get(localName);
+
+	if(profile != null && parent != null) {
+	    if(n == null) {
+		n = paths.grow(parent, localName);
+	    }
+	    if(n != null && n.stat == null) {
+		n.stat = profile.stat(n.path);
+	    }
+	}
+
+	boolean in = inside[depth] || (n != null && n.include);
+
+	if(filtering) {
+	    if((n != null && n.exclude) || (!in && (n == null || !n.leadsToInclude))) {
+		return false;
+	    }
+	}
+
+	int d = depth + 1;
+	if(d == nodes.length) {
+	    nodes = Arrays.copyOf(nodes, d * 2);
+	    inside = Arrays.copyOf(inside, d * 2);
+	    uris = Arrays.copyOf(uris, d * 2);
+	    names = Arrays.copyOf(names, d * 2);
+	}
+	nodes[d] = n;
+	inside[d] = in;
+	uris[d] = uri;
+	names[d] = localName;
+
+	return true;
+    }
+
+
+    /**
+     *  The record just closed and has been placed into currentMap like any
+     *  other element.  Yank it (and its attributes, if any) back out and 
+     *  hand it to the consumer.
+     */
+    private void emitRecord(String tag) {
+	Run r = run();
+	if(r.values != null && r.tag.equals(tag)) {
+	    r.values = null; // about to be taken out of the map
+	}
+
+	Map rec = newMap();
+
+	Object o = take(currentMap, tag);
+	if(o != null) {
+	    rec.put(tag, o);
+	}
+
+	String atag = makeAttrName(tag);
+	o = take(currentMap, atag);
+	if(o != null) {
+	    rec.put(atag, o);
+	}
+
+	if(deListify && isWrapper(tag)) {
+	    promote(rec, tag);
+	}
+
+	recordConsumer.accept((Map<String,Object>)rec);
+    }
+
+
+    public void processingInstruction(String target, String data) {
+	if(skipping == 0 && splicer != null && SPLICE_TARGET.equals(target)) {
+	    spliceRecords(splicer.apply(Integer.parseInt(data.trim())));
+	}
+    }
+
+
+    /**
+     *  The inverse of emitRecord.   We are sitting inside the parent
+     *  element; insert each record map's value and attributes exactly
+     *  the way endElement would have, List-ifying and padding attrs as
+     *  needed.   If the parent has not seen a child yet it is still
+     *  "accumulating", so first turn it into a Map like startElement
+     *  would.
+     */
+    private void spliceRecords(List<Map<String,Object>> recs) {
+	if(accumulating) {
+	    nest();
+	    clearAttrs();
+	    accumulating = false;
+	}
+
+	String atag = makeAttrName(spliceTag);
+
+	for(Map<String,Object> rec : recs) {
+	    if(rec.containsKey(spliceTag)) {
+		addValue(spliceTag, peek(rec, spliceTag));
+	    }
+	    putAttrsInMap(currentMap, spliceTag, (Map)peek(rec, atag));
+	}
     }
 
 	
+    /**
+     *  Turn the accumulated chars in carr into the value to store,
+     *  applying convertNumbers / convertDates.  The number and date
+     *  sniffers run directly over the chars; a String is only made when
+     *  the value really is a String.
+     *
+     *  ATTENTION!
+     *  Because we cannot guarantee that 20160405 is YYYYMMDD
+     *  vs. YYYYDDMM, we will let convertNumbers gobble it up!
+     *  The Date sniffer will look for YYYY-MM-DD which clearly
+     *  is not an int!
+     */
+    private Object leafValue() {
+	SniffProfile.Stat stat = null;
+
+	if(paths != null) {
+	    PathTrie.Node n = nodes[depth + 1];
+	    if(n != null) {
+		if(n.converter != null) {
+		    return hinted(n.converter);
+		}
+		stat = n.stat;
+		if(stat != null && stat.alwaysString) {
+		    // Known to never be anything but a String.  Skip the
+		    // cache too; it may hold a number for the same chars.
+		    return carr.toString();
+		}
+	    }
+	}
+
+	boolean sniff = (lazy == null) && (convertNumbers || convertDates);
+
+	if(!sniff && valueCache == null) {
+	    return (lazy == null) ? carr.toString() : new LazyMap.Raw(carr.toString());
+	}
+
+	int end = carr.length();
+	if(end > numbuf.length) {
+	    numbuf = new char[end + 1];
+	}
+	carr.getChars(0, end, numbuf, 0);
+
+	Object value = null;
+
+	if(valueCache == null || end > ValueCache.MAX_LENGTH) {
+	    value = convertChars(end);
+
+	} else {
+	    int h = ValueCache.hash(numbuf, 0, end);
+
+	    value = valueCache.get(numbuf, 0, end, h);
+
+	    if(value == null) {
+		value = convertChars(end);
+		valueCache.put((value instanceof String) ? (String)value : new String(numbuf, 0, end), value, h);
+	    }
+	}
+
+	if(lazy != null) {
+	    // Lazy mode: convertChars did not sniff; park the raw text
+	    return new LazyMap.Raw((String)value);
+	}
+
+	if(stat != null && sniff && end > 0) {
+	    stat.record(!(value instanceof String), profile.missLimit());
+	}
+
+	return value;
+    }
+
+
+    /**
+     *  Declared type: straight from the chars, no sniffing, no dedup
+     *  cache (its entries were made by the sniffing rules).
+     */
+    private Object hinted(ValueConverter vc) {
+	int end = carr.length();
+	if(end > numbuf.length) {
+	    numbuf = new char[end + 1];
+	}
+	carr.getChars(0, end, numbuf, 0);
+
+	Object value = vc.convert(numbuf, 0, end);
+
+	return (value != null) ? value : new String(numbuf, 0, end);
+    }
+
+
+    /**
+     *  numbuf[0..end) has already been loaded from carr.
+     */
+    private Object convertChars(int end) {
+	Object value = null;
+
+	if(lazy == null) {
+	    if(convertNumbers) {
+		value = NumberSniffer.sniff(numbuf, 0, end, useBigDecimal);
+	    }
+
+	    if(value == null && convertDates == true) {
+		value = dates.sniff(numbuf, 0, end);
+	    }
+	}
+
+	if(value == null) {
+	    value = new String(numbuf, 0, end);
+	}
+
+	return value;
+    }
+
+
     public void startPrefixMapping(String prefix, String uri) {
 	//System.out.println("map [" + prefix + "] to " + uri);
 
@@ -946,230 +1749,4 @@ public class HashHandler extends org.xml.sax.helpers.DefaultHandler {
     }
 
 
-    private static Date sniffString(String s) 
-    {
-	Date d = null;
-
-	//   Thank goodness all these formats have unique lengths!!!
-
-	//   YYYY-MM-DD                 length is 10
-
-	//   YYYY-MM-DDThh:mm:ss        length is 19
-	//   YYYY-MM-DDThh:mm:ssZ       length is 20
-	//   YYYY-MM-DDThh:mm:ss+hh:mm  length is 25
-
-	//   YYYY-MM-DDThh:mm:ss.sss    length is 23
-	//   YYYY-MM-DDThh:mm:ss.sssZ   length is 24
-	//   YYYY-MM-DDThh:mm:ss.sss+hh:mm  length is 29
-
-	// s[10] must be 'T'
-	if(s != null) {
-	    int l = s.length();
-
-	    boolean pass1 = false;
-	    int[] xmm = null;
-
-	    int tzhrs = -1; // i.e. unset
-	    int tzmin = -1; // i.e. unset
-
-	    if(l == 10) {
-		if(s.charAt(4) == '-'
-		   && s.charAt(7) == '-') {
-
-		    xmm = dm;
-
-		    pass1 = true;
-		}
-	    
-	    } else if(l == 19 || l == 20 || l == 25
-		      || l == 23 || l == 24 | l == 29) {
-
-		if(s.charAt(4) == '-'
-		    && s.charAt(7) == '-'
-		    && s.charAt(10) == 'T'
-		    && s.charAt(13) == ':'
-		    && s.charAt(16) == ':') {
-
-		    if(l == 19) {
-			xmm = smm;
-			pass1 = true;
-
-		    } else if(l == 20) {
-			xmm = smm;
-			if(s.charAt(19) == 'Z') {
-			    tzhrs = 0; // Z means assume 00:00 offset
-			    tzmin = 0;
-			    pass1 = true;
-			} // Not 'Z' so not valid
-
-		    } else if(l == 25) {
-			xmm = tzsmm;
-			if((s.charAt(19) == '+' || s.charAt(19) == '-')
-			   && s.charAt(22) == ':') {
-			    pass1 = true;
-			} // Not '+-' and ':' so not valid			
-
-
-			// ms variants:
-		    } else if(l == 23) {
-			xmm = msmm;
-			pass1 = true;
-
-		    } else if(l == 24) {
-			xmm = msmm;
-			if(s.charAt(23) == 'Z') {
-			    tzhrs = 0; // Z means assume 00:00 offset
-			    tzmin = 0;
-			    pass1 = true;
-			}
-
-		    } else if(l == 29) {
-			xmm = tzmsmm;
-			if((s.charAt(23) == '+' || s.charAt(23) == '-')
-			   && s.charAt(26) == ':') {
-			    pass1 = true;
-			}
-		    }
-		}
-	    } 
-
-	    if(pass1 == true) {
-		// Basic skeleton of delims is correct, so
-		// check for everything else being between 0 and 9:
-		boolean restAreNums = true;
-
-		for(int j = 0; j < xmm.length; j++) {
-		    char c = s.charAt(xmm[j]);
-		    if(c < '0' || c > '9') {
-			restAreNums = false;
-			break;
-		    }
-		}
-		
-		if(restAreNums == true) {
-		    
-		    // Structural OK; try to build a real Date
-		    int year = 0;
-		    int month = 0;
-		    int day = 0;
-		    
-		    int hour = 0;
-		    int min = 0;
-		    int sec = 0;
-		    int msec = 0;
-
-		    int mult = 1;
-		    
-		    year  = buildNumber(s, 0, 4);
-		    month = buildNumber(s, 5, 2);
-		    day   = buildNumber(s, 8, 2);
-
-		    if(l != 10) {
-			hour  = buildNumber(s, 11, 2);
-			min   = buildNumber(s, 14, 2);
-			sec   = buildNumber(s, 17, 2);
-		    
-			if(l == 23 || l == 24 || l == 29) {
-			    msec = buildNumber(s, 20, 3);
-			} 
-
-			if(l == 25) {
-			    tzhrs = buildNumber(s, 20, 2);
-			    tzmin = buildNumber(s, 23, 2);
-
-			    if(s.charAt(19) == '-') {
-				mult = -1;
-			    }
-
-			} else if(l == 29) {
-			    tzhrs = buildNumber(s, 24, 2);
-			    tzmin = buildNumber(s, 27, 2);
-
-			    if(s.charAt(23) == '-') {
-				mult = -1;
-			    }
-			}
-		    }
-		    
-		    /********
-			     System.out.println("got here with " + s);
-			     System.out.println("ymd hms: " + year
-			     + "," + month
-			     + "," + day
-			     + "," + hour
-			     + "," + min
-			     + "," + sec
-			     + "," + msec);
-		    ********/
-
-		    Calendar cal = Calendar.getInstance();
-		    cal.clear();
-
-		    // If we explicitly set up GMT offset, then FORCE the Calendar
-		    // object into GMT mode.   Otherwise, when we do cal.getTime() later
-		    // the local time JVM offset will automagically be added in!  Yuck
-		    if(tzhrs != -1 || tzmin != -1) {
-			cal.setTimeZone(java.util.TimeZone.getTimeZone("GMT"));
-		    }
-
-		    /*
-		      public void setTimeZone(TimeZone value)
-
-		     */
-
-		    cal.set( Calendar.YEAR,  year );
-		    cal.set( Calendar.MONTH, month - 1); // YOW!
-		    cal.set( Calendar.DATE,  day ); 
-		    cal.set( Calendar.HOUR_OF_DAY, hour ); 
-		    cal.set( Calendar.MINUTE, min );
-		    cal.set( Calendar.SECOND, sec );
-		    cal.set( Calendar.MILLISECOND, msec ); 	    
-		    
-		    // Still kinda unsure about all this...
-		    if(tzhrs != -1) {
-			cal.add( Calendar.HOUR_OF_DAY, tzhrs * mult);
-		    }
-		    if(tzmin != -1) {
-			cal.add( Calendar.MINUTE, tzmin * mult);
-		    }
-
-		    d = cal.getTime();					
-		}
-	    }
-	}
-	return d;
-    }
-
-    // buildNumber(s, 0, 4);
-    private static int buildNumber(String s, int idx, int len) {
-	int item = 0;
-
-	// k is going 0 to len-1. i.e. 0 to 3 for year...
-	for(int k = 0; k < len; k++) {
-
-	    // Given 2013, jump to 3 
-	    int nx = idx + (len-1) - k;
-
-	    char c = s.charAt(nx);
-	    switch(k) {
-	    case 3:
-		item += (c - '0') * 1000;
-		break;
-	    case 2:
-		item += (c - '0') * 100;
-		break;
-	    case 1:
-		item += (c - '0') * 10;
-		break;
-	    case 0:
-		item += (c - '0');
-		break;
-	    }
-	}
-
-	return item;
-    }
-
-
-
 }
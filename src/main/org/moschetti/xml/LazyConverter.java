@@ -0,0 +1,50 @@
+package org.moschetti.xml;
+
+/**
+ *  The convertNumbers / convertDates rules, frozen at the start of a
+ *  parse, for LazyMap to apply on first access.  One per parse (NOT per
+ *  HashHandler) so maps handed out earlier keep working no matter what
+ *  the HashHandler is doing now.
+ */
+final class LazyConverter {
+
+    private final boolean convertNumbers;
+    private final boolean useBigDecimal;
+    private final DateSniffer dates;
+
+    private char[] buf = new char[64];
+
+
+    LazyConverter(boolean convertNumbers, boolean useBigDecimal, boolean convertDates, boolean javaTime) {
+	this.convertNumbers = convertNumbers;
+	this.useBigDecimal = useBigDecimal;
+	this.dates = convertDates ? new DateSniffer(javaTime) : null;
+    }
+
+
+    /**
+     *  Synchronized only so that racing readers of the maps cannot
+     *  scribble on each other's buffer; the maps themselves are still
+     *  not thread safe.
+     */
+    synchronized Object convert(String text) {
+	int len = text.length();
+	if(len > buf.length) {
+	    buf = new char[len];
+	}
+	text.getChars(0, len, buf, 0);
+
+	Object value = null;
+
+	if(convertNumbers) {
+	    value = NumberSniffer.sniff(buf, 0, len, useBigDecimal);
+	}
+
+	if(value == null && dates != null) {
+	    value = dates.sniff(buf, 0, len);
+	}
+
+	return (value == null) ? text : value;
+    }
+
+}
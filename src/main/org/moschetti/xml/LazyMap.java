@@ -0,0 +1,195 @@
+package org.moschetti.xml;
+
+import java.util.Map;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.RandomAccess;
+
+/**
+ *  Output Map for lazy conversion mode (ParseOptions.lazyConversion).
+ *  Leaves are parked as raw text and the convertNumbers / convertDates
+ *  rules are only run the first time a value is actually read; the
+ *  result is then written back so it is converted at most once.
+ *  Consumers that only look at a few fields per record never pay to
+ *  sniff the rest.
+ *
+ *  The real storage is whatever Map the mapFactory / mapType makes, so
+ *  ordering etc. behave exactly as in eager mode.  Everything that
+ *  reads values (get, entrySet, values, equals, toString...) sees
+ *  converted values; the raw holders never leak out.
+ *
+ *  Because reads write back, these maps are NOT safe for concurrent
+ *  reads from multiple threads without external locking.
+ */
+final class LazyMap extends AbstractMap<String,Object> {
+
+    /**
+     *  Marker for a not-yet-converted leaf.
+     */
+    static final class Raw {
+	final String text;
+
+	Raw(String text) {
+	    this.text = text;
+	}
+
+	public String toString() {
+	    return text;
+	}
+    }
+
+
+    private final Map<String,Object> inner;
+    private final LazyConverter conv;
+
+    private Set<Map.Entry<String,Object>> entrySet;
+
+
+    LazyMap(Map<String,Object> inner, LazyConverter conv) {
+	this.inner = inner;
+	this.conv = conv;
+    }
+
+
+    /**
+     *  For HashHandler's own bookkeeping: no conversion.
+     */
+    Object getRaw(Object key) {
+	return inner.get(key);
+    }
+
+    Object removeRaw(Object key) {
+	return inner.remove(key);
+    }
+
+
+    public Object get(Object key) {
+	Object v = inner.get(key);
+	if(v instanceof Raw) {
+	    v = conv.convert(((Raw)v).text);
+	    inner.put((String)key, v); // replace, not a structural change
+	}
+	return v;
+    }
+
+    public Object put(String key, Object value) {
+	return resolve(inner.put(key, value));
+    }
+
+    public Object remove(Object key) {
+	return resolve(inner.remove(key));
+    }
+
+    public boolean containsKey(Object key) {
+	return inner.containsKey(key);
+    }
+
+    public int size() {
+	return inner.size();
+    }
+
+    public void clear() {
+	inner.clear();
+    }
+
+    public Set<String> keySet() {
+	return inner.keySet();
+    }
+
+    public Set<Map.Entry<String,Object>> entrySet() {
+	if(entrySet == null) {
+	    entrySet = new EntrySet();
+	}
+	return entrySet;
+    }
+
+
+    private Object resolve(Object v) {
+	return (v instanceof Raw) ? conv.convert(((Raw)v).text) : v;
+    }
+
+
+
+    private class EntrySet extends AbstractSet<Map.Entry<String,Object>> {
+
+	public Iterator<Map.Entry<String,Object>> iterator() {
+	    final Iterator<Map.Entry<String,Object>> ii = inner.entrySet().iterator();
+
+	    return new Iterator<Map.Entry<String,Object>>() {
+		public boolean hasNext() {
+		    return ii.hasNext();
+		}
+
+		public Map.Entry<String,Object> next() {
+		    Map.Entry<String,Object> e = ii.next();
+		    Object v = e.getValue();
+		    if(v instanceof Raw) {
+			e.setValue(conv.convert(((Raw)v).text));
+		    }
+		    return e;
+		}
+
+		public void remove() {
+		    ii.remove();
+		}
+	    };
+	}
+
+	public int size() {
+	    return inner.size();
+	}
+
+	public void clear() {
+	    inner.clear();
+	}
+    }
+
+
+
+    /**
+     *  List flavor, for repeated like-named leaves.
+     */
+    static final class LazyList extends AbstractList<Object> implements RandomAccess {
+
+	private final ArrayList<Object> inner = new ArrayList<Object>();
+	private final LazyConverter conv;
+
+	LazyList(LazyConverter conv) {
+	    this.conv = conv;
+	}
+
+	public Object get(int index) {
+	    Object v = inner.get(index);
+	    if(v instanceof Raw) {
+		v = conv.convert(((Raw)v).text);
+		inner.set(index, v);
+	    }
+	    return v;
+	}
+
+	public int size() {
+	    return inner.size();
+	}
+
+	public Object set(int index, Object value) {
+	    Object v = inner.set(index, value);
+	    return (v instanceof Raw) ? conv.convert(((Raw)v).text) : v;
+	}
+
+	public void add(int index, Object value) {
+	    inner.add(index, value);
+	    modCount++;
+	}
+
+	public Object remove(int index) {
+	    Object v = inner.remove(index);
+	    modCount++;
+	    return (v instanceof Raw) ? conv.convert(((Raw)v).text) : v;
+	}
+    }
+
+}
@@ -1,15 +1,24 @@
 package org.moschetti.xml;
 
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 import java.util.Map;
 import java.util.List;
+import java.util.Iterator;
+
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *  A perfectly adequte XML emitter for our Maps.
- *  
+ *  Output is UTF-8; see XmlWriter for how it is produced.
  */
 public class Map2XML {
 
@@ -17,235 +26,181 @@ public class Map2XML {
     public static final int EMIT_TYPE_XSD = 1;
 
     private final static String DEFAULT_TYPE_NAME="__defaultType__";
-    private final static int START = 1;
-    private final static int END = 2;
-    private final static int ITEM = 3;
-    private final static int LIST = 4;
-
-
 
-    private static void emit(OutputStream os, String s) 
-	throws java.io.IOException 
-    {
-	os.write(s.getBytes());
+    /**
+     *  See WriteOptions.parallelThreshold.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+
+
+    /**
+     *  Settings for a write.   A null WriteOptions means all defaults.
+     */
+    public static class WriteOptions {
+
+	/**
+	 *  Lists (RandomAccess ones, e.g. ArrayList) with more than this
+	 *  many elements are serialized in pieces on pool and stitched
+	 *  back together in order; the output is byte for byte the same
+	 *  as writing them one by one.   0 or less turns it off; so does
+	 *  a pool of parallelism 1 (e.g. the common pool on one CPU).
+	 *
+	 *  The Maps in such a List are read from several threads at
+	 *  once, each by only one of them, so nothing may modify them
+	 *  while they are being written.
+	 */
+	public int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 *  Where parallel pieces run; null means the common ForkJoinPool.
+	 */
+	public ForkJoinPool pool;
     }
 
-    private static int writeXMLVal(String fval, boolean cdata, OutputStream os) 
-	throws java.io.IOException {
-
-	final byte[] cdata_start = "<![CDATA[".getBytes();
-	final byte[] cdata_end = "]]>".getBytes();
-
-	byte[] b = null;
-
-	int nbytes = 0;
-
-	if(cdata) {
-	    os.write(cdata_start); nbytes += cdata_start.length;
-	}
-
-	b = fval.getBytes();
-
-	os.write(b); nbytes += b.length;
 
-	if(cdata) {
-	    os.write(cdata_end); nbytes += cdata_end.length;
+    static XmlWriter newWriter(OutputStream out, WriteOptions options) {
+	if(options == null) {
+	    return new XmlWriter(out, DEFAULT_PARALLEL_THRESHOLD, ForkJoinPool.commonPool());
 	}
-
-	return nbytes;
+	return new XmlWriter(out, options.parallelThreshold,
+			     (options.pool == null) ? ForkJoinPool.commonPool() : options.pool);
     }
 
 
-
-    private static StringBuilder XMLgroomStringInit(StringBuilder existing, String in, int i) {
-	StringBuilder sb = existing;
-
-	if(existing == null) {
-	    sb = new StringBuilder();
-	    // Further optimize if i != 0
-	    if(i != 0) {
-		sb.append(in.substring(0, i));
-	    }
-	}
-	return sb;
+    public static void writeXML(OutputStream out, Map<String,Object> xmap, String enclosingTag)
+	throws IOException
+    {
+	writeXML(out, xmap, enclosingTag, null);
     }
 
+    public static void writeXML(OutputStream out, Map<String,Object> xmap, String enclosingTag, WriteOptions options)
+	throws IOException
+    {
+	XmlWriter w = newWriter(out, options);
+	w.map(enclosingTag, xmap, 0);
+	w.flush();
+    }
 
-    private static String XMLgroomString(String in, boolean includeBar) {
-
-	// Most of the time, nothing to do.   So only
-	// take the grooming hit if we find someething...
-
-	StringBuilder sb = null;
-
-	int n = in.length();
 
-	for(int i = 0; i < n; i++) {
-	    char c = in.charAt(i);
 
-	    switch(c) {
+    /**
+     *  Same output as writeXML(OutputStream...), written to a (blocking)
+     *  channel.   A FileChannel that is also open for READ is written
+     *  thru a read-write mapping; anything else gets pooled direct
+     *  buffers and gathering writes.   The channel is left open.
+     */
+    public static void writeXML(WritableByteChannel ch, Map<String,Object> xmap, String enclosingTag)
+	throws IOException
+    {
+	writeXML(ch, xmap, enclosingTag, null);
+    }
 
-	    default:
-		if(sb != null) {
-		    sb.append(c);
-		}
-		break;
-
-	    case '<':
-		sb = XMLgroomStringInit(sb, in , i);
-		sb.append("&lt;"); 
-		break;
-
-	    case '>':
-		sb = XMLgroomStringInit(sb, in , i);
-		sb.append("&gt;"); 
-		break;
-
-	    case '&':
-		sb = XMLgroomStringInit(sb, in , i);
-		sb.append("&amp;"); 
-		break;
-
-
-	    case '|':
-		if(includeBar) {
-		    sb = XMLgroomStringInit(sb, in , i);
-		    sb.append("\\|"); 
-		} else if(sb != null) {
-		    sb.append(c);
-		}
-		break;
-	    }
+    public static void writeXML(WritableByteChannel ch, Map<String,Object> xmap, String enclosingTag, WriteOptions options)
+	throws IOException
+    {
+	OutputStream out = null;
+	if(ch instanceof FileChannel) {
+	    out = MappedOutput.open((FileChannel)ch);
 	}
-
-	if(sb == null) {
-	    // nothing to groom: return ORIGNAL string!
-	    return in;
-	} else {
-	    return sb.toString();
+	if(out == null) {
+	    out = new ChannelOutput(ch);
 	}
+	write(out, xmap, enclosingTag, options);
     }
 
 
-    public static void writeXML(OutputStream out, Map<String,Object> xmap, String enclosingTag)
+    /**
+     *  Replaces (or creates) path, writing thru a read-write mapping.
+     */
+    public static void writeXML(Path path, Map<String,Object> xmap, String enclosingTag)
 	throws IOException
     {
-	walkMap(out, enclosingTag, xmap, 0, "  ");
+	writeXML(path, xmap, enclosingTag, null);
     }
 
-
-
-    
-    private static void walkMap(OutputStream os, String enclosingTag, Map<String,Object> m, int level, String indentString)
+    public static void writeXML(Path path, Map<String,Object> xmap, String enclosingTag, WriteOptions options)
 	throws IOException
     {
-	writeTag(LIST, START, os, enclosingTag, level, indentString);
-
-	java.util.Iterator<String> ii = m.keySet().iterator();
-	while(ii.hasNext()) {
-	    String key = ii.next();
-	    Object ov = m.get(key);
-
-	    if(ov != null) {
-
-		if(ov instanceof Map) {
-		    walkMap(os, key, (Map)ov, level+1, indentString);
-
-
-		} else if(ov instanceof List) {
-		    String nenct = key + "_LIST";
-		    writeTag(LIST, START, os, nenct, level+1, indentString);
-		    walkList(os, key, (List)ov, level+1, indentString);
-		    writeTag(LIST, END, os, nenct, level+1,  indentString);
-
-		} else {
-		    writeTag(ITEM, START, os, key, level+1, indentString);
-
-		    // switch type to groom....
-
-		    String xx = XMLgroomString(ov.toString(), false);
-
-		    writeXMLVal(xx, false, os);
-
-		    writeTag(ITEM, END, os, key, level+1, indentString);
-		}
-	    }
+	try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	    writeXML(fc, xmap, enclosingTag, options);
 	}
-
-	writeTag(LIST, END, os, enclosingTag, level, indentString);
     }
 
 
+    /**
+     *  Same output as writeXML(OutputStream...), put into dst starting
+     *  at its position (which is left at the end of the output).
+     *  Throws java.nio.BufferOverflowException if dst is too small.
+     */
+    public static void writeXML(ByteBuffer dst, Map<String,Object> xmap, String enclosingTag)
+	throws IOException
+    {
+	writeXML(dst, xmap, enclosingTag, null);
+    }
 
-    private static void walkList(OutputStream os, String enclosingTag, List l, int level, String indentString) 
+    public static void writeXML(final ByteBuffer dst, Map<String,Object> xmap, String enclosingTag, WriteOptions options)
 	throws IOException
     {
-	for(int jj = 0; jj < l.size(); jj++) {
-	    Object ov = l.get(jj);
-	    
-	    if(ov != null) {
-		if(ov instanceof Map) {
-		    walkMap(os, enclosingTag, (Map)ov, level+1, indentString);
-		} else if(ov instanceof List) {
-		    walkList(os, enclosingTag, (List)ov, level+1, indentString);
-		} else {
-		    writeTag(ITEM, START, os, enclosingTag, level+1, indentString);
-		    String xx = XMLgroomString(ov.toString(), false);
-
-		    writeXMLVal(xx, false, os);
-
-		    writeTag(ITEM, END, os, enclosingTag, level+1, indentString);
+	write(new OutputStream() {
+		public void write(int b) {
+		    dst.put((byte)b);
 		}
-	    }
-	}
-    }    
-
-
-
-    private static void writeTag(int type, int soe, OutputStream os, String tag, int indentLevel, String indentString)
-	throws java.io.IOException {
-
-	//  For ITEM:
-	//    [whitespace]<ns:tag [XSDtype=]>
-	//    </ns:tag>
-	//
-	//  For LIST:
-	//    [whitespace]<ns:tag [XSDtype=] xmlns:ns="uri">
-	//    [whitespace]</ns:tag>
-
-	int n = 0;
-
-	StringBuilder sb = new StringBuilder();
-
-	if(soe == START || type == LIST) {
-	    if(indentLevel > 0) {
-		for(int a = 0; a < indentLevel; a++) {
-		    sb.append(indentString);
+		public void write(byte[] b, int off, int len) {
+		    dst.put(b, off, len);
 		}
-	    }
-	}
+	    }, xmap, enclosingTag, options);
+    }
 
-	sb.append("<");
 
-	if(soe == END) {
-	    sb.append("/");
+    private static void write(OutputStream out, Map<String,Object> xmap, String enclosingTag, WriteOptions options)
+	throws IOException
+    {
+	try {
+	    XmlWriter w = newWriter(out, options);
+	    w.map(enclosingTag, xmap, 0);
+	    w.flush();
+	} finally {
+	    out.close();
 	}
+    }
 
-	String prefix = null;
-	String uri = null;
 
-	sb.append(tag);
+    /**
+     *  Start a streaming export; see RecordWriter.   The root start tag
+     *  is written right away.
+     */
+    public static RecordWriter recordWriter(OutputStream out, String rootTag, String recordTag)
+	throws IOException
+    {
+	return recordWriter(out, rootTag, recordTag, null);
+    }
 
-	sb.append(">");
+    public static RecordWriter recordWriter(OutputStream out, String rootTag, String recordTag, WriteOptions options)
+	throws IOException
+    {
+	return new RecordWriter(out, rootTag, recordTag, options);
+    }
 
-	byte[] bb = sb.toString().getBytes();
-	os.write(bb);
 
-	if(soe == END || type == LIST) {
-	    if(indentString != null) {
-		os.write('\n'); 
-	    }
+    /**
+     *  Same output as writeXML() on a Map holding recordTag -&gt; a List
+     *  of everything in records, without building either.
+     */
+    public static void writeXML(OutputStream out, Iterator<? extends Map<String,Object>> records, String rootTag, String recordTag)
+	throws IOException
+    {
+	writeXML(out, records, rootTag, recordTag, null);
+    }
+
+    public static void writeXML(OutputStream out, Iterator<? extends Map<String,Object>> records, String rootTag, String recordTag, WriteOptions options)
+	throws IOException
+    {
+	RecordWriter rw = new RecordWriter(out, rootTag, recordTag, options);
+	while(records.hasNext()) {
+	    rw.writeRecord(records.next());
 	}
+	rw.close();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+package org.moschetti.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  A file mapped read-only into memory.  A single MappedByteBuffer
+ *  tops out at 2GB, so bigger files are mapped as a series of SEGMENT
+ *  sized pieces.  Reading goes straight from the mapping (i.e. the OS
+ *  page cache) into the caller's array; there is no FileInputStream or
+ *  BufferedInputStream copy in the middle.
+ *
+ *  The channel is closed right after mapping; the mappings stay valid
+ *  until they are garbage collected.
+ */
+final class MappedByteSource implements ByteSource {
+
+    static final long SEGMENT = 1L << 30;
+
+    private final long length;
+    private final MappedByteBuffer[] segs;
+
+
+    MappedByteSource(Path path)
+	throws IOException
+    {
+	try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+	    length = fc.size();
+
+	    int n = (int)((length + SEGMENT - 1) / SEGMENT);
+	    segs = new MappedByteBuffer[Math.max(n, 1)];
+
+	    for(int i = 0; i < segs.length; i++) {
+		long base = i * SEGMENT;
+		segs[i] = fc.map(FileChannel.MapMode.READ_ONLY, base, Math.min(SEGMENT, length - base));
+	    }
+	}
+    }
+
+
+    public long length() {
+	return length;
+    }
+
+    public int segments() {
+	return segs.length;
+    }
+
+    public ByteBuffer segment(int i) {
+	return segs[i].duplicate();
+    }
+
+    public long segmentBase(int i) {
+	return i * SEGMENT;
+    }
+
+    public InputStream stream(long from, long to) {
+	return new SegmentInputStream(from, to);
+    }
+
+
+
+    /**
+     *  Bytes [pos, end) of the mapping.  Each stream has its own
+     *  duplicate of the current segment so any number can be read at
+     *  once.
+     */
+    private class SegmentInputStream extends InputStream {
+	private long pos;
+	private final long end;
+
+	private int segIdx = -1;
+	private ByteBuffer cur;
+
+	SegmentInputStream(long from, long to) {
+	    this.pos = from;
+	    this.end = to;
+	}
+
+	/**
+	 *  Position cur at pos, moving to the next segment as needed.
+	 */
+	private ByteBuffer at() {
+	    int si = (int)(pos / SEGMENT);
+	    if(si != segIdx) {
+		segIdx = si;
+		cur = segs[si].duplicate();
+	    }
+	    cur.position((int)(pos - si * SEGMENT));
+	    return cur;
+	}
+
+	public int read() {
+	    if(pos >= end) {
+		return -1;
+	    }
+	    int b = at().get() & 0xff;
+	    pos++;
+	    return b;
+	}
+
+	public int read(byte[] b, int off, int len) {
+	    if(len == 0) {
+		return 0;
+	    }
+	    if(pos >= end) {
+		return -1;
+	    }
+	    ByteBuffer bb = at();
+
+	    int n = (int)Math.min(Math.min((long)len, end - pos), (long)bb.remaining());
+	    bb.get(b, off, n);
+	    pos += n;
+	    return n;
+	}
+
+	public long skip(long n) {
+	    long k = Math.max(0, Math.min(n, end - pos));
+	    pos += k;
+	    return k;
+	}
+
+	public int available() {
+	    return (int)Math.min(Integer.MAX_VALUE, end - pos);
+	}
+    }
+
+}
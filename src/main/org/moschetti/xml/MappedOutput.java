@@ -0,0 +1,121 @@
+package org.moschetti.xml;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  OutputStream that writes straight into a file mapped read-write,
+ *  starting at the channel's position; the write side of
+ *  MappedByteSource.   The file is mapped a piece at a time, starting
+ *  at FIRST bytes (or less if the caller expects less) and doubling up
+ *  to SEGMENT, so a small document only grows the file by a little.
+ *  Mapping grows the file ahead of what has been written, so close()
+ *  cuts it back to the end of the output (but never shorter than it
+ *  was), even if something else in close() fails, and leaves the
+ *  channel positioned there.
+ *
+ *  Mapping read-write needs a channel opened for READ as well as
+ *  WRITE, and a file system that can map at all; open() returns null
+ *  when it cannot, so the caller can fall back to ChannelOutput.
+ *  close() does NOT close the channel.   Mappings cannot be unmapped
+ *  by hand; close() drops ours so they go with the next GC.
+ */
+final class MappedOutput extends OutputStream {
+
+    static final long FIRST = 1L << 20;
+    static final long SEGMENT = 64L << 20;
+
+    private final FileChannel fc;
+    private final long size;
+
+    private MappedByteBuffer map;
+    private long base;
+
+
+    private MappedOutput(FileChannel fc, MappedByteBuffer map, long base, long size) {
+	this.fc = fc;
+	this.map = map;
+	this.base = base;
+	this.size = size;
+    }
+
+
+    /**
+     *  A MappedOutput if fc can be mapped read-write, else null.
+     */
+    static MappedOutput open(FileChannel fc) throws IOException {
+	return open(fc, FIRST);
+    }
+
+    /**
+     *  estimate is roughly how many bytes are coming; the first piece
+     *  mapped is no bigger than that.
+     */
+    static MappedOutput open(FileChannel fc, long estimate) throws IOException {
+	long at = fc.position();
+	long size = fc.size();
+	long first = Math.max(4096, Math.min(SEGMENT, estimate));
+	MappedByteBuffer m;
+	try {
+	    m = fc.map(FileChannel.MapMode.READ_WRITE, at, first);
+	} catch(java.nio.channels.NonReadableChannelException | UnsupportedOperationException | IOException e) {
+	    // Mapping may already have grown the file; undo that.
+	    if(fc.size() > size) {
+		fc.truncate(size);
+	    }
+	    return null;
+	}
+	return new MappedOutput(fc, m, at, size);
+    }
+
+
+    public void write(int b) throws IOException {
+	if(!map.hasRemaining()) {
+	    next();
+	}
+	map.put((byte)b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+	while(len > 0) {
+	    if(!map.hasRemaining()) {
+		next();
+	    }
+	    int n = Math.min(len, map.remaining());
+	    map.put(b, off, n);
+	    off += n;
+	    len -= n;
+	}
+    }
+
+
+    public void close() throws IOException {
+	if(map == null) {
+	    return;
+	}
+	long end = base + map.position();
+	map = null;
+
+	try {
+	    fc.position(end);
+	} finally {
+	    long keep = Math.max(size, end);
+	    if(fc.size() > keep) {
+		fc.truncate(keep);
+	    }
+	}
+    }
+
+
+    private void next() throws IOException {
+	long at = base + map.capacity();
+	long len = Math.min(SEGMENT, (long)map.capacity() * 2);
+	// Only move on once the new piece is there, so a failure here
+	// still leaves close() able to cut the file back:
+	map = fc.map(FileChannel.MapMode.READ_WRITE, at, len);
+	base = at;
+    }
+}
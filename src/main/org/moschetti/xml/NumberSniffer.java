@@ -0,0 +1,154 @@
+package org.moschetti.xml;
+
+import java.math.BigDecimal;
+
+/**
+ *  The convertNumbers sniffer, working straight off a char[] so no
+ *  intermediate String is made.   Rules (unchanged from the original
+ *  HashHandler logic):
+ *  <pre>
+ *  0        // OK!  Just integer 0
+ *  00232    // bad; treat as string
+ *  00.232   // bad; treat as string
+ *  0.123,   // OK! treat as float
+ *  .123,    // OK! treat as float
+ *  .        // bad; treat as string
+ *  -        // bad; treat as string
+ *  1e5      // bad; only digits, one dot and a leading minus allowed
+ *  </pre>
+ *  Integers become Integer if they fit, else Long if they fit, else
+ *  Double.   Floats become Double, or BigDecimal if asked.
+ */
+final class NumberSniffer {
+
+    private NumberSniffer() {}
+
+    /**
+     *  Exactly representable powers of ten.  Any integer mantissa up to
+     *  2^53 divided by one of these is correctly rounded (Clinger's
+     *  fast path), which covers nearly all real-world data.
+     */
+    private static final double[] POW10 = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+	1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+	1e21, 1e22
+    };
+
+    private static final long MAX_EXACT = 1L << 53;
+
+
+    /**
+     *  Returns Integer, Long, Double or BigDecimal if buf[off..off+len)
+     *  sniffs like a number, else null.
+     */
+    static Object sniff(char[] buf, int off, int len, boolean useBigDecimal) {
+	if(len == 0) {
+	    return null;
+	}
+
+	int end = off + len;
+	int start = off;
+	boolean neg = false;
+
+	if(buf[off] == '-') {
+	    if(len == 1) {
+		return null; // Just a dash; not a number!
+	    }
+	    neg = true;
+	    start++;
+	}
+
+	int dot = -1;
+	for(int jj = start; jj < end; jj++) {
+	    char c = buf[jj];
+	    if(c == '.') {
+		if(dot >= 0) {
+		    return null; // more than one dot!
+		}
+		dot = jj;
+	    } else if(c < '0' || c > '9') {
+		return null;
+	    }
+	}
+
+	int n = end - start;
+
+	if(buf[start] == '0' && n > 1 && buf[start + 1] != '.') {
+	    return null; // leading zeroes
+	}
+	if(n == 1 && dot == start) {
+	    return null; // solo dot
+	}
+
+	if(dot < 0) {
+	    return parseInteger(buf, start, end, neg);
+	}
+
+	if(useBigDecimal) {
+	    return new BigDecimal(buf, off, len);
+	}
+
+	return parseDouble(buf, off, len, start, dot, neg);
+    }
+
+
+    /**
+     *  All digits in [start,end).  Accumulate negatively so that
+     *  Long.MIN_VALUE works; bail to Double if it won't fit in a long.
+     */
+    private static Object parseInteger(char[] buf, int start, int end, boolean neg) {
+	long acc = 0;
+	long limit = neg ? Long.MIN_VALUE : -Long.MAX_VALUE;
+	long multmin = limit / 10;
+
+	for(int jj = start; jj < end; jj++) {
+	    int d = buf[jj] - '0';
+	    if(acc < multmin) {
+		return slowDouble(buf, start, end, neg);
+	    }
+	    acc *= 10;
+	    if(acc < limit + d) {
+		return slowDouble(buf, start, end, neg);
+	    }
+	    acc -= d;
+	}
+
+	long v = neg ? acc : -acc;
+
+	if(v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+	    return Integer.valueOf((int)v);
+	}
+	return Long.valueOf(v);
+    }
+
+
+    private static Object parseDouble(char[] buf, int off, int len, int start, int dot, boolean neg) {
+	int end = off + len;
+	long mant = 0;
+
+	for(int jj = start; jj < end; jj++) {
+	    if(jj != dot) {
+		mant = mant * 10 + (buf[jj] - '0');
+		if(mant > MAX_EXACT) {
+		    return Double.valueOf(Double.parseDouble(new String(buf, off, len)));
+		}
+	    }
+	}
+
+	int scale = end - dot - 1; // digits after the dot
+	if(scale >= POW10.length) {
+	    return Double.valueOf(Double.parseDouble(new String(buf, off, len)));
+	}
+
+	double d = (double)mant / POW10[scale];
+
+	return Double.valueOf(neg ? -d : d);
+    }
+
+
+    private static Object slowDouble(char[] buf, int start, int end, boolean neg) {
+	double d = Double.parseDouble(new String(buf, start, end - start));
+	return Double.valueOf(neg ? -d : d);
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.moschetti.xml;
+
+import java.io.Serializable;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.RandomAccess;
+
+/**
+ *  The <tt>__attributes_</tt> List for a run of like-named siblings
+ *  whose attributes only show up part way thru, e.g. the 1,000,001st
+ *  <tt>&lt;row&gt;</tt> is the first with an attribute.  The attribute
+ *  list has to line up with the data list, so it must start with
+ *  1,000,000 nulls; here those are just a count instead of real slots
+ *  that get filled one by one.  Everything from the first real entry
+ *  on is kept in an ArrayList.
+ *
+ *  Behaves like any other mutable List.  Changing anything in the
+ *  leading nulls turns them into real slots first.  It is Serializable
+ *  but is written out as a plain ArrayList (what HashHandler used to
+ *  return here), so the reading side never sees a PaddedList.
+ */
+final class PaddedList extends AbstractList<Object> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int pad;
+    private ArrayList<Object> tail = new ArrayList<Object>();
+
+
+    /**
+     *  pad nulls followed by first.
+     */
+    PaddedList(int pad, Object first) {
+	this.pad = pad;
+	tail.add(first);
+    }
+
+
+    public Object get(int index) {
+	if(index < 0 || index >= size()) {
+	    throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+	}
+	return (index < pad) ? null : tail.get(index - pad);
+    }
+
+    public int size() {
+	return pad + tail.size();
+    }
+
+    public boolean add(Object o) {
+	modCount++;
+	return tail.add(o);
+    }
+
+    public Object set(int index, Object o) {
+	if(index < pad) {
+	    inflate();
+	}
+	return tail.set(index - pad, o);
+    }
+
+    public void add(int index, Object o) {
+	if(index < pad) {
+	    inflate();
+	}
+	modCount++;
+	tail.add(index - pad, o);
+    }
+
+    public Object remove(int index) {
+	if(index < pad) {
+	    inflate();
+	}
+	modCount++;
+	return tail.remove(index - pad);
+    }
+
+    public void clear() {
+	modCount++;
+	pad = 0;
+	tail.clear();
+    }
+
+
+    private Object writeReplace() {
+	return new ArrayList<Object>(this);
+    }
+
+
+    private void inflate() {
+	ArrayList<Object> a = new ArrayList<Object>(pad + tail.size());
+	for(int kk = 0; kk < pad; kk++) {
+	    a.add(null);
+	}
+	a.addAll(tail);
+	tail = a;
+	pad = 0;
+    }
+
+}
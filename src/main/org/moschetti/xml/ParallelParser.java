@@ -0,0 +1,335 @@
+package org.moschetti.xml;
+
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.SequenceInputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *  Parses one big document on many cores, for documents that are
+ *  mostly a long run of repeating "record" elements at a known path.
+ *  <ol>
+ *  <li>RecordScanner makes one fast byte-level pass to find where the
+ *      records are.   As it finds them, batches of about CHUNK_BYTES
+ *      worth of consecutive records are handed to the ForkJoinPool.
+ *      Each batch is wrapped in the raw start / end tags of its
+ *      ancestors (so paths, namespaces and xmlns prefixes are exactly
+ *      what they were) and parsed in record mode by its own
+ *      HashHandler.
+ *  <li>Meanwhile the calling thread parses the "skeleton": the document
+ *      with all the records cut out.   Each run of back-to-back records
+ *      is replaced by a <tt>&lt;?xmlutils-splice N?&gt;</tt> PI.   When
+ *      HashHandler hits it, it waits for the batches holding run N and
+ *      inserts those records right there using the same rules as a
+ *      straight parse (List-ifying, attribute lists), so even key order
+ *      in a LinkedHashMap comes out the same.
+ *  </ol>
+ *  The result is the same Map a sequential parseXML() would produce.
+ *  Anything sitting between records (comments, other elements) goes
+ *  along for the ride in the batch, where it is ignored, and stays in
+ *  the skeleton, where it is not.
+ *
+ *  Falls back to a plain sequential parse when splitting is not safe or
+ *  not possible: a DOCTYPE (entities, defaults), a UTF-16 document, a
+ *  record path less than 2 deep (no parent to group under),
+ *  include / exclude paths in the options, or deListify (whether a
+ *  wrapper gets collapsed can depend on what is in other batches).
+ */
+final class ParallelParser implements RecordScanner.Listener {
+
+    /**
+     *  Target batch size.  Big enough to amortize the setup of a
+     *  SAXParser + HashHandler, small enough to spread across cores.
+     */
+    static final long CHUNK_BYTES = 1L << 20;
+
+
+    /**
+     *  All records under one parent element instance.  The splice side
+     *  walks thru them in order with a cursor.
+     */
+    private static class Group {
+	byte[] open;
+	byte[] close;
+	List<ForkJoinTask<List<Map<String,Object>>>> batches = new ArrayList<ForkJoinTask<List<Map<String,Object>>>>();
+
+	int nextBatch = 0;
+	List<Map<String,Object>> current = Collections.emptyList();
+	int pos = 0;
+    }
+
+
+    private final ByteSource src;
+    private final String recordPath;
+    private final String[] segs;
+    private final Class mapType;
+    private final XMLUtils.ParseOptions options;
+    private final ForkJoinPool pool;
+
+    private RecordScanner scanner;
+    private byte[] xmlDecl = null;
+    private boolean fallback = false;
+
+    private final HashMap<Integer,Group> groups = new HashMap<Integer,Group>();
+    /**
+     *  { group, start, end, count } for every run of records, in order.
+     */
+    private final List<long[]> runs = new ArrayList<long[]>();
+
+    /**
+     *  First batch failure, so it can be rethrown as-is rather than
+     *  buried inside the skeleton parse failure.
+     */
+    private volatile XMLParsingException failure = null;
+
+
+    private ParallelParser(ByteSource src, String recordPath, Class mapType, XMLUtils.ParseOptions options, ForkJoinPool pool) {
+	this.src = src;
+	this.recordPath = recordPath;
+	this.segs = HashHandler.splitPath(recordPath);
+	this.mapType = mapType;
+	this.pool = pool;
+
+	if(options.internNames && options.symbolTable == null) {
+	    // One table for all the batches, not one each:
+	    options = options.copy();
+	    options.symbolTable = new SymbolTable();
+	}
+	this.options = options;
+    }
+
+
+    static Map<String,Object> parse(ByteSource src, String recordPath, Class mapType, XMLUtils.ParseOptions options, ForkJoinPool pool)
+	throws XMLParsingException
+    {
+	return new ParallelParser(src, recordPath, mapType, options, pool).run();
+    }
+
+
+    private Map<String,Object> run()
+	throws XMLParsingException
+    {
+	long startTime = System.nanoTime();
+
+	Map<String,Object> data = null;
+
+	if(segs.length < 2 || projecting(options) || options.deListify || !asciiCompatible()) {
+	    data = sequential();
+
+	} else {
+	    scanner = new RecordScanner(segs, CHUNK_BYTES, this);
+
+	    for(int i = 0; i < src.segments() && !fallback; i++) {
+		scanner.scan(src.segment(i), src.segmentBase(i));
+	    }
+	    scanner.finish();
+
+	    if(fallback || scanner.sawDoctype()) {
+		cancelAll();
+		data = sequential();
+	    } else {
+		data = skeleton();
+	    }
+	}
+
+	if(options.parseTimeInNanosField != null) {
+	    data.put(options.parseTimeInNanosField, System.nanoTime() - startTime);
+	}
+
+	return data;
+    }
+
+
+    /**
+     *  Batches must hand back every record the scanner counted, which
+     *  will not be true if include / exclude drop some of them.
+     */
+    static boolean projecting(XMLUtils.ParseOptions options) {
+	return (options.includePaths != null && !options.includePaths.isEmpty())
+	    || (options.excludePaths != null && !options.excludePaths.isEmpty());
+    }
+
+
+    /**
+     *  UTF-16 (with or without BOM) cannot be scanned bytewise.
+     */
+    private boolean asciiCompatible() {
+	if(src.length() < 2) {
+	    return true;
+	}
+	ByteBuffer bb = src.segment(0);
+	return asciiCompatible(bb.get(0) & 0xff, bb.get(1) & 0xff);
+    }
+
+    /**
+     *  Same, given the first two bytes.
+     */
+    static boolean asciiCompatible(int b0, int b1) {
+	return !((b0 == 0xfe && b1 == 0xff)
+		 || (b0 == 0xff && b1 == 0xfe)
+		 || (b0 == 0x00 && b1 == '<')
+		 || (b0 == '<' && b1 == 0x00));
+    }
+
+
+    private Map<String,Object> sequential()
+	throws XMLParsingException
+    {
+	HashHandler hx = XMLUtils.makeHandler(mapType, options);
+	XMLUtils.runParse(null, src.stream(0, src.length()), hx);
+	return hx.getRootMap();
+    }
+
+
+
+    // RecordScanner.Listener:
+
+    public void group(int group, byte[] open, byte[] close) {
+	if(scanner.sawDoctype()) {
+	    fallback = true;
+	    return;
+	}
+	if(xmlDecl == null) {
+	    xmlDecl = scanner.xmlDecl();
+	}
+	Group g = new Group();
+	g.open = open;
+	g.close = close;
+	groups.put(group, g);
+    }
+
+    public void chunk(int group, final long start, final long end) {
+	if(fallback) {
+	    return;
+	}
+	final Group g = groups.get(group);
+	g.batches.add(pool.submit(ForkJoinTask.adapt((Callable<List<Map<String,Object>>>) () -> parseBatch(g, start, end))));
+    }
+
+    public void run(int group, long start, long end, int count) {
+	runs.add(new long[] { group, start, end, count });
+    }
+
+    public void documentEnded(long end) {
+    }
+
+
+
+    private List<Map<String,Object>> parseBatch(Group g, long start, long end)
+	throws XMLParsingException
+    {
+	List<InputStream> parts = new ArrayList<InputStream>(4);
+	if(xmlDecl != null) {
+	    parts.add(new ByteArrayInputStream(xmlDecl));
+	}
+	parts.add(new ByteArrayInputStream(g.open));
+	parts.add(src.stream(start, end));
+	parts.add(new ByteArrayInputStream(g.close));
+
+	List<Map<String,Object>> out = new ArrayList<Map<String,Object>>();
+
+	HashHandler hx = XMLUtils.makeHandler(mapType, options);
+	hx.setRecordHandler(recordPath, out::add);
+
+	XMLUtils.runParse(null, new SequenceInputStream(Collections.enumeration(parts)), hx);
+
+	return out;
+    }
+
+
+    private Map<String,Object> skeleton()
+	throws XMLParsingException
+    {
+	List<InputStream> parts = new ArrayList<InputStream>();
+
+	long pos = 0;
+	for(int i = 0; i < runs.size(); i++) {
+	    long[] r = runs.get(i);
+	    parts.add(src.stream(pos, r[1]));
+
+	    String pi = "<?" + HashHandler.SPLICE_TARGET + " " + i + "?>";
+	    parts.add(new ByteArrayInputStream(pi.getBytes(StandardCharsets.US_ASCII)));
+
+	    pos = r[2];
+	}
+	parts.add(src.stream(pos, src.length()));
+
+	HashHandler hx = XMLUtils.makeHandler(mapType, options);
+	hx.setSplicer(segs[segs.length - 1], this::records);
+
+	try {
+	    XMLUtils.runParse(null, new SequenceInputStream(Collections.enumeration(parts)), hx);
+	} catch(XMLParsingException e) {
+	    cancelAll();
+	    throw (failure != null) ? failure : e;
+	}
+
+	return hx.getRootMap();
+    }
+
+
+    /**
+     *  Called from inside the skeleton parse at each splice PI:  the
+     *  next count records of the run's group.
+     */
+    private List<Map<String,Object>> records(int run) {
+	long[] r = runs.get(run);
+	Group g = groups.get((int)r[0]);
+	int count = (int)r[3];
+
+	List<Map<String,Object>> out = new ArrayList<Map<String,Object>>(count);
+
+	while(out.size() < count) {
+	    if(g.pos == g.current.size()) {
+		g.current = join(g.batches.get(g.nextBatch));
+		g.batches.set(g.nextBatch++, null); // let go of them as we go
+		g.pos = 0;
+	    } else {
+		out.add(g.current.get(g.pos++));
+	    }
+	}
+
+	return out;
+    }
+
+
+    private List<Map<String,Object>> join(ForkJoinTask<List<Map<String,Object>>> t) {
+	try {
+	    return t.join();
+	} catch(RuntimeException e) {
+	    for(Throwable c = e; c != null; c = c.getCause()) {
+		if(c instanceof XMLParsingException) {
+		    failure = (XMLParsingException)c;
+		    break;
+		}
+	    }
+	    throw e;
+	}
+    }
+
+
+    private void cancelAll() {
+	for(Group g : groups.values()) {
+	    if(g.batches != null) {
+		for(ForkJoinTask<?> t : g.batches) {
+		    if(t != null) {
+			t.cancel(false);
+		    }
+		}
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.moschetti.xml;
+
+import java.util.HashMap;
+
+/**
+ *  Element paths (local names, e.g. <tt>/Envelope/Header/To</tt>)
+ *  compiled into a tree so HashHandler can follow along one hash lookup
+ *  per element instead of comparing path strings.   Include / exclude
+ *  projection and type hints all live in the same tree.  HashHandler
+ *  keeps a stack of the Node for each open element; null means "no
+ *  path goes thru here".
+ */
+final class PathTrie {
+
+    static final class Node {
+	final HashMap<String,Node> kids = new HashMap<String,Node>(4);
+
+	boolean include = false;
+	boolean exclude = false;
+
+	/**
+	 *  An include path goes thru (or ends at) this node.
+	 */
+	boolean leadsToInclude = false;
+
+	/**
+	 *  0..includes-1 for include nodes, else -1.
+	 */
+	int includeId = -1;
+
+	/**
+	 *  Type hint for leaf values at this path, if any.
+	 */
+	ValueConverter converter = null;
+
+	/**
+	 *  Adaptive sniffing (see SniffProfile): the path of this node,
+	 *  e.g. "/feed/item/name", and its shared Stat once looked up.
+	 */
+	String path;
+	SniffProfile.Stat stat = null;
+
+	Node(String path) {
+	    this.path = path;
+	}
+    }
+
+
+    /**
+     *  grow() stops adding nodes past this, for documents with endless
+     *  varieties of tag names.
+     */
+    static final int MAX_NODES = 10000;
+
+
+    final Node root = new Node("");
+
+    private int includes = 0;
+    private int size = 1;
+
+
+    int includes() {
+	return includes;
+    }
+
+
+    Node add(String path) {
+	String[] segs = HashHandler.splitPath(path);
+
+	Node n = root;
+	for(int kk = 0; kk < segs.length; kk++) {
+	    Node k = n.kids.get(segs[kk]);
+	    if(k == null) {
+		k = new Node(n.path + "/" + segs[kk]);
+		n.kids.put(segs[kk], k);
+		size++;
+	    }
+	    n = k;
+	}
+	return n;
+    }
+
+
+    /**
+     *  Add (and return) a child for an element seen while parsing, or
+     *  null if the tree is full.
+     */
+    Node grow(Node parent, String name) {
+	if(size >= MAX_NODES) {
+	    return null;
+	}
+	Node k = new Node(parent.path + "/" + name);
+	parent.kids.put(name, k);
+	size++;
+	return k;
+    }
+
+
+    void include(String path) {
+	Node n = add(path);
+
+	Node k = root;
+	for(String seg : HashHandler.splitPath(path)) {
+	    k = k.kids.get(seg);
+	    k.leadsToInclude = true;
+	}
+
+	if(!n.include) {
+	    n.include = true;
+	    n.includeId = includes++;
+	}
+    }
+
+
+    void exclude(String path) {
+	add(path).exclude = true;
+    }
+
+}
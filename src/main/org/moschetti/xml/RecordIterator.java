@@ -0,0 +1,259 @@
+package org.moschetti.xml;
+
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.Location;
+
+import org.xml.sax.Attributes;
+
+import java.util.Map;
+import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+
+/**
+ *  Pull-based walk over the records of a (possibly huge) document.
+ *  Backed by a JDK StAX XMLStreamReader; the reader is only advanced
+ *  far enough to complete the next record when hasNext() is called, so
+ *  stopping early (or calling close()) means the rest of the input is
+ *  never parsed.
+ *
+ *  Each record is built by a HashHandler in record mode and therefore
+ *  looks exactly like what XMLUtils.parseRecords() hands to its consumer.
+ *
+ *  Parse failures are thrown as UncheckedXMLParsingException because
+ *  Iterator cannot throw checked exceptions.   The HashHandler gets its
+ *  endDocument() at the end of the input or on close(), whichever comes
+ *  first, just as it would from SAX.   close() closes the
+ *  XMLStreamReader but NOT the underlying InputStream; that still
+ *  belongs to the caller.
+ */
+public class RecordIterator implements Iterator<Map<String,Object>>, AutoCloseable {
+
+    private XMLStreamReader reader;
+    private HashHandler hx;
+
+    private ArrayDeque<Map<String,Object>> ready = new ArrayDeque<Map<String,Object>>();
+
+    private boolean done = false;
+
+    private StaxAttributes attrs;
+
+
+    RecordIterator(XMLStreamReader reader, HashHandler hx, String recordPath) {
+	this.reader = reader;
+	this.hx = hx;
+	this.attrs = new StaxAttributes(reader);
+
+	hx.setRecordHandler(recordPath, ready::add);
+	hx.startDocument();
+    }
+
+
+    public boolean hasNext() {
+	while(ready.isEmpty() && !done) {
+	    advance();
+	}
+	return !ready.isEmpty();
+    }
+
+
+    public Map<String,Object> next() {
+	if(!hasNext()) {
+	    throw new NoSuchElementException();
+	}
+	return ready.poll();
+    }
+
+
+    public void close() {
+	if(!done) {
+	    done = true;
+	    try {
+		// A handler that stopped early has already ended itself:
+		if(!hx.stoppedEarly()) {
+		    hx.endDocument();
+		}
+	    } finally {
+		try {
+		    reader.close();
+		} catch(XMLStreamException e) {
+		    // nothing useful to do; we are done with it anyway
+		}
+	    }
+	}
+    }
+
+
+    /**
+     *  Pull exactly one StAX event and feed it to the HashHandler.
+     */
+    private void advance() {
+	try {
+	    if(!reader.hasNext()) {
+		close();
+		return;
+	    }
+
+	    switch(reader.next()) {
+
+	    case XMLStreamConstants.START_ELEMENT:
+		int n = reader.getNamespaceCount();
+		for(int kk = 0; kk < n; kk++) {
+		    String pfx = reader.getNamespacePrefix(kk);
+		    hx.startPrefixMapping(pfx == null ? "" : pfx, reader.getNamespaceURI(kk));
+		}
+		hx.startElement(nz(reader.getNamespaceURI()), reader.getLocalName(), qname(), attrs);
+		break;
+
+	    case XMLStreamConstants.END_ELEMENT:
+		hx.endElement(nz(reader.getNamespaceURI()), reader.getLocalName(), qname());
+		break;
+
+	    case XMLStreamConstants.CHARACTERS:
+	    case XMLStreamConstants.CDATA:
+	    case XMLStreamConstants.SPACE:
+		hx.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+		break;
+
+	    case XMLStreamConstants.END_DOCUMENT:
+		close();
+		break;
+	    }
+
+	} catch(XMLStreamException e) {
+	    close();
+	    throw new UncheckedXMLParsingException(failure(e));
+
+	} catch(org.xml.sax.SAXException e) {
+	    close();
+	    if(!hx.stoppedEarly()) {
+		throw new UncheckedXMLParsingException(failure(e));
+	    }
+
+	} catch(RuntimeException e) {
+	    close();
+	    throw new UncheckedXMLParsingException(failure(e));
+	}
+    }
+
+
+    private XMLParsingException failure(Exception e) {
+	int cn = -1;
+	int ln = -1;
+
+	Location loc = (e instanceof XMLStreamException) ? ((XMLStreamException)e).getLocation() : null;
+	if(loc == null) {
+	    try {
+		loc = reader.getLocation();
+	    } catch(Exception e2) {
+		// reader may already be closed
+	    }
+	}
+	if(loc != null) {
+	    cn = loc.getColumnNumber();
+	    ln = loc.getLineNumber();
+	}
+
+	return new XMLParsingException("parsing/conversion failure near column " + cn + ", line " + ln + ": " + e);
+    }
+
+
+    private String qname() {
+	String pfx = reader.getPrefix();
+	if(pfx == null || pfx.length() == 0) {
+	    return reader.getLocalName();
+	}
+	return pfx + ":" + reader.getLocalName();
+    }
+
+    private static String nz(String s) {
+	return s == null ? "" : s;
+    }
+
+
+
+    /**
+     *  Presents the attributes of the CURRENT start element of the reader
+     *  as SAX Attributes so HashHandler can consume them unchanged.
+     *  No copying; only valid while the reader sits on that element.
+     */
+    private static class StaxAttributes implements Attributes {
+
+	private XMLStreamReader r;
+
+	StaxAttributes(XMLStreamReader r) {
+	    this.r = r;
+	}
+
+	public int getLength() {
+	    return r.getAttributeCount();
+	}
+
+	public String getURI(int index) {
+	    return nz(r.getAttributeNamespace(index));
+	}
+
+	public String getLocalName(int index) {
+	    return r.getAttributeLocalName(index);
+	}
+
+	public String getQName(int index) {
+	    String pfx = r.getAttributePrefix(index);
+	    if(pfx == null || pfx.length() == 0) {
+		return r.getAttributeLocalName(index);
+	    }
+	    return pfx + ":" + r.getAttributeLocalName(index);
+	}
+
+	public String getType(int index) {
+	    return r.getAttributeType(index);
+	}
+
+	public String getValue(int index) {
+	    return r.getAttributeValue(index);
+	}
+
+	public int getIndex(String uri, String localName) {
+	    int n = getLength();
+	    for(int kk = 0; kk < n; kk++) {
+		if(getURI(kk).equals(nz(uri)) && getLocalName(kk).equals(localName)) {
+		    return kk;
+		}
+	    }
+	    return -1;
+	}
+
+	public int getIndex(String qName) {
+	    int n = getLength();
+	    for(int kk = 0; kk < n; kk++) {
+		if(getQName(kk).equals(qName)) {
+		    return kk;
+		}
+	    }
+	    return -1;
+	}
+
+	public String getType(String uri, String localName) {
+	    int idx = getIndex(uri, localName);
+	    return idx < 0 ? null : getType(idx);
+	}
+
+	public String getType(String qName) {
+	    int idx = getIndex(qName);
+	    return idx < 0 ? null : getType(idx);
+	}
+
+	public String getValue(String uri, String localName) {
+	    int idx = getIndex(uri, localName);
+	    return idx < 0 ? null : getValue(idx);
+	}
+
+	public String getValue(String qName) {
+	    int idx = getIndex(qName);
+	    return idx < 0 ? null : getValue(idx);
+	}
+    }
+
+}
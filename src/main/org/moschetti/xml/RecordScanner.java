@@ -0,0 +1,601 @@
+package org.moschetti.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ *  A very small, very fast, byte-level XML "scanner" that does just
+ *  enough tokenizing (tags, quoted attribute values, comments, PIs,
+ *  CDATA, DOCTYPE) to find where the elements at a record path begin
+ *  and end.   It does NOT parse; SAX does that later on the pieces.
+ *
+ *  It is push-driven and resumable: hand it ByteBuffers in document
+ *  order (any size, split anywhere) and it calls back as it goes.
+ *  It reports:
+ *  <ul>
+ *  <li>group: an element at the record's PARENT path opened.  Records
+ *      are grouped by parent instance.  Along with it come the raw
+ *      start tags of the parent and all its ancestors (attributes,
+ *      xmlns declarations and all) plus the matching end tags, so a
+ *      set of records can be wrapped into a standalone document that
+ *      has exactly the same paths and namespaces as the original.
+ *  <li>chunk: a byte span of about chunkBytes holding one or more
+ *      records of a group.  It may also hold other stuff that sits
+ *      between those records (comments, other elements).
+ *  <li>run: a byte span of count consecutive records of a group separated
+ *      only by whitespace.
+ *  <li>documentEnded: the root element closed.
+ *  </ul>
+ *  Element names are matched on local name (prefix stripped), like
+ *  HashHandler.   Only ASCII-compatible encodings (UTF-8, ISO-8859-x,
+ *  etc.) can be scanned.
+ */
+final class RecordScanner {
+
+    interface Listener {
+	void group(int group, byte[] open, byte[] close);
+	void chunk(int group, long start, long end);
+	void run(int group, long start, long end, int count);
+	void documentEnded(long end);
+    }
+
+
+    private static final int TEXT = 0;
+    private static final int LT = 1;
+    private static final int STAG_NAME = 2;
+    private static final int STAG = 3;
+    private static final int STAG_SLASH = 4;
+    private static final int ATTR_DQ = 5;
+    private static final int ATTR_SQ = 6;
+    private static final int ETAG = 7;
+    private static final int PI = 8;
+    private static final int PI_Q = 9;
+    private static final int BANG = 10;
+    private static final int BANG_DASH = 11;
+    private static final int COMMENT = 12;
+    private static final int COMMENT_D1 = 13;
+    private static final int COMMENT_D2 = 14;
+    private static final int CDATA_OPEN = 15;
+    private static final int CDATA = 16;
+    private static final int CDATA_B1 = 17;
+    private static final int CDATA_B2 = 18;
+    private static final int DECL = 19;
+    private static final int DECL_DQ = 20;
+    private static final int DECL_SQ = 21;
+
+    private static final byte[] CDATA_MARK = "[CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+
+    private final byte[][] segs;
+    private final long chunkBytes;
+    private final Listener listener;
+
+    private int state = TEXT;
+
+    private int depth = 0;
+    private int matched = 0;
+    private int group = 0;
+
+    private long tagStart;
+    private long recordStart;
+
+    private byte[] name = new byte[64];
+    private int nameLen;
+    private int colon;
+
+    private boolean capturing;
+    private ByteArrayOutputStream tagBuf = new ByteArrayOutputStream();
+    private byte[][] ancestorTags;
+    private byte[][] ancestorNames;
+
+    private boolean seenElement = false;
+    private boolean capturingDecl = false;
+    private ByteArrayOutputStream declBuf = new ByteArrayOutputStream();
+    private byte[] xmlDecl = null;
+    private boolean sawDoctype = false;
+    private int declDepth = 0;
+    private int cdataIdx;
+
+    /**
+     *  dirty: something other than whitespace has been seen since the
+     *  last record ended.  contiguous: it had not, as of the start of
+     *  the current record.
+     */
+    private boolean dirty = false;
+    private boolean contiguous = false;
+
+    private boolean runActive = false;
+    private int runGroup;
+    private long runStart;
+    private long runEnd;
+    private int runCount;
+
+    private boolean chunkActive = false;
+    private long chunkStart;
+    private long chunkEnd;
+
+
+    RecordScanner(String[] path, long chunkBytes, Listener listener) {
+	this.segs = new byte[path.length][];
+	for(int kk = 0; kk < path.length; kk++) {
+	    segs[kk] = path[kk].getBytes(StandardCharsets.UTF_8);
+	}
+	this.chunkBytes = chunkBytes;
+	this.listener = listener;
+
+	this.ancestorTags = new byte[path.length][];
+	this.ancestorNames = new byte[path.length][];
+    }
+
+
+    /**
+     *  The raw <tt>&lt;?xml ... ?&gt;</tt> declaration, if the document
+     *  started with one.
+     */
+    byte[] xmlDecl() {
+	return xmlDecl;
+    }
+
+    /**
+     *  A DOCTYPE may declare entities that records depend on, so
+     *  callers should not try to parse records standalone if true.
+     */
+    boolean sawDoctype() {
+	return sawDoctype;
+    }
+
+    int depth() {
+	return depth;
+    }
+
+
+    /**
+     *  Scan bb from position to limit; base is the absolute document
+     *  offset of bb[position].   bb's position is not changed.
+     */
+    void scan(ByteBuffer bb, long base) {
+	int p0 = bb.position();
+	int lim = bb.limit();
+
+	for(int i = p0; i < lim; i++) {
+	    byte b = bb.get(i);
+	    long pos = base + (i - p0);
+
+	    switch(state) {
+
+	    case TEXT:
+		if(b == '<') {
+		    state = LT;
+		    tagStart = pos;
+		} else if(!isWs(b)) {
+		    dirty = true;
+		}
+		break;
+
+	    case LT:
+		if(b == '/') {
+		    state = ETAG;
+		} else if(b == '?') {
+		    state = PI;
+		    capturingDecl = !seenElement && xmlDecl == null;
+		    if(capturingDecl) {
+			declBuf.reset();
+			declBuf.write('<');
+			declBuf.write('?');
+		    }
+		} else if(b == '!') {
+		    state = BANG;
+		} else {
+		    state = STAG_NAME;
+		    nameLen = 0;
+		    colon = -1;
+		    appendName(b);
+		    capturing = depth < segs.length - 1;
+		    if(capturing) {
+			tagBuf.reset();
+			tagBuf.write('<');
+			tagBuf.write(b);
+		    }
+		}
+		break;
+
+	    case STAG_NAME:
+		if(capturing) {
+		    tagBuf.write(b);
+		}
+		if(isWs(b)) {
+		    state = STAG;
+		} else if(b == '/') {
+		    state = STAG_SLASH;
+		} else if(b == '>') {
+		    state = TEXT;
+		    startTag(false, pos + 1);
+		} else {
+		    if(b == ':') {
+			colon = nameLen;
+		    }
+		    appendName(b);
+		}
+		break;
+
+	    case STAG:
+		if(capturing) {
+		    tagBuf.write(b);
+		}
+		if(b == '"') {
+		    state = ATTR_DQ;
+		} else if(b == '\'') {
+		    state = ATTR_SQ;
+		} else if(b == '/') {
+		    state = STAG_SLASH;
+		} else if(b == '>') {
+		    state = TEXT;
+		    startTag(false, pos + 1);
+		}
+		break;
+
+	    case STAG_SLASH:
+		if(capturing) {
+		    tagBuf.write(b);
+		}
+		if(b == '>') {
+		    state = TEXT;
+		    startTag(true, pos + 1);
+		} else {
+		    state = STAG;
+		}
+		break;
+
+	    case ATTR_DQ:
+		if(capturing) {
+		    tagBuf.write(b);
+		}
+		if(b == '"') {
+		    state = STAG;
+		}
+		break;
+
+	    case ATTR_SQ:
+		if(capturing) {
+		    tagBuf.write(b);
+		}
+		if(b == '\'') {
+		    state = STAG;
+		}
+		break;
+
+	    case ETAG:
+		if(b == '>') {
+		    state = TEXT;
+		    endTag(pos + 1);
+		}
+		break;
+
+	    case PI:
+		if(capturingDecl) {
+		    declBuf.write(b);
+		}
+		if(b == '?') {
+		    state = PI_Q;
+		}
+		break;
+
+	    case PI_Q:
+		if(capturingDecl) {
+		    declBuf.write(b);
+		}
+		if(b == '>') {
+		    state = TEXT;
+		    endPI();
+		} else if(b != '?') {
+		    state = PI;
+		}
+		break;
+
+	    case BANG:
+		if(b == '-') {
+		    state = BANG_DASH;
+		} else if(b == '[') {
+		    state = CDATA_OPEN;
+		    cdataIdx = 1;
+		} else {
+		    state = (b == '>') ? TEXT : DECL;
+		    sawDoctype = true;
+		    declDepth = 0;
+		}
+		break;
+
+	    case BANG_DASH:
+		state = (b == '-') ? COMMENT : DECL;
+		break;
+
+	    case COMMENT:
+		if(b == '-') {
+		    state = COMMENT_D1;
+		}
+		break;
+
+	    case COMMENT_D1:
+		state = (b == '-') ? COMMENT_D2 : COMMENT;
+		break;
+
+	    case COMMENT_D2:
+		if(b == '>') {
+		    state = TEXT;
+		} else if(b != '-') {
+		    state = COMMENT;
+		}
+		break;
+
+	    case CDATA_OPEN:
+		if(b == CDATA_MARK[cdataIdx]) {
+		    cdataIdx++;
+		    if(cdataIdx == CDATA_MARK.length) {
+			state = CDATA;
+			dirty = true;
+		    }
+		} else {
+		    state = DECL;
+		    declDepth = 0;
+		}
+		break;
+
+	    case CDATA:
+		if(b == ']') {
+		    state = CDATA_B1;
+		}
+		break;
+
+	    case CDATA_B1:
+		state = (b == ']') ? CDATA_B2 : CDATA;
+		break;
+
+	    case CDATA_B2:
+		if(b == '>') {
+		    state = TEXT;
+		} else if(b != ']') {
+		    state = CDATA;
+		}
+		break;
+
+	    case DECL:
+		if(b == '"') {
+		    state = DECL_DQ;
+		} else if(b == '\'') {
+		    state = DECL_SQ;
+		} else if(b == '[') {
+		    declDepth++;
+		} else if(b == ']') {
+		    declDepth--;
+		} else if(b == '>' && declDepth <= 0) {
+		    state = TEXT;
+		}
+		break;
+
+	    case DECL_DQ:
+		if(b == '"') {
+		    state = DECL;
+		}
+		break;
+
+	    case DECL_SQ:
+		if(b == '\'') {
+		    state = DECL;
+		}
+		break;
+	    }
+	}
+    }
+
+
+    /**
+     *  Report the records found so far as a chunk now rather than
+     *  waiting for it to fill up.   For callers that want records as
+     *  soon as their bytes are in (see FeedParser).
+     */
+    void flush() {
+	closeChunk();
+    }
+
+
+    /**
+     *  The earliest offset (given end, the offset scanned up to) that
+     *  may still be part of a record not yet reported: the start of
+     *  the record we are in, or of the tag we are in the middle of.
+     *  Bytes before it will never show up in a chunk again.
+     */
+    long pending(long end) {
+	if(matched == segs.length) {
+	    return recordStart;
+	}
+	if(state != TEXT) {
+	    return tagStart;
+	}
+	return end;
+    }
+
+
+    /**
+     *  No more input coming; flush any open run / chunk.
+     */
+    void finish() {
+	closeRun();
+	closeChunk();
+    }
+
+
+
+    private void startTag(boolean selfClosing, long end) {
+	seenElement = true;
+
+	int d = depth;
+	boolean isRecord = false;
+
+	if(matched == d && d < segs.length && localNameIs(segs[d])) {
+	    if(d == segs.length - 1) {
+		isRecord = true;
+
+	    } else {
+		ancestorTags[d] = tagBuf.toByteArray();
+		ancestorNames[d] = java.util.Arrays.copyOf(name, nameLen);
+
+		if(!selfClosing) {
+		    matched = d + 1;
+		    if(d == segs.length - 2) {
+			group++;
+			listener.group(group, wrapperOpen(d), wrapperClose(d));
+		    }
+		}
+	    }
+	}
+
+	if(isRecord) {
+	    contiguous = !dirty;
+	    if(selfClosing) {
+		recordDone(tagStart, end);
+	    } else {
+		matched = d + 1;
+		recordStart = tagStart;
+	    }
+	} else {
+	    dirty = true;
+	}
+
+	if(!selfClosing) {
+	    depth++;
+	} else if(d == 0) {
+	    closeRun();
+	    closeChunk();
+	    listener.documentEnded(end);
+	}
+    }
+
+
+    private void endTag(long end) {
+	depth--;
+	int d = depth;
+
+	if(matched > d) {
+	    if(matched == segs.length) {
+		recordDone(recordStart, end);
+	    } else {
+		// a parent (or further up) closing; group is done
+		dirty = true;
+		closeRun();
+		closeChunk();
+	    }
+	    matched = d;
+	} else {
+	    dirty = true;
+	}
+
+	if(depth == 0) {
+	    closeRun();
+	    closeChunk();
+	    listener.documentEnded(end);
+	}
+    }
+
+
+    private void endPI() {
+	if(capturingDecl) {
+	    byte[] pi = declBuf.toByteArray();
+	    if(pi.length > 6 && pi[2] == 'x' && pi[3] == 'm' && pi[4] == 'l' && isWs(pi[5])) {
+		xmlDecl = pi;
+	    }
+	    capturingDecl = false;
+	}
+    }
+
+
+    private void recordDone(long start, long end) {
+	if(!(runActive && runGroup == group && contiguous)) {
+	    closeRun();
+	    runActive = true;
+	    runGroup = group;
+	    runStart = start;
+	    runCount = 0;
+	}
+	runEnd = end;
+	runCount++;
+
+	if(chunkActive && end - chunkStart <= chunkBytes) {
+	    chunkEnd = end;
+	} else {
+	    closeChunk();
+	    chunkActive = true;
+	    chunkStart = start;
+	    chunkEnd = end;
+	}
+
+	dirty = false;
+    }
+
+
+    private void closeChunk() {
+	if(chunkActive) {
+	    chunkActive = false;
+	    listener.chunk(group, chunkStart, chunkEnd);
+	}
+    }
+
+
+    private void closeRun() {
+	if(runActive) {
+	    runActive = false;
+	    listener.run(runGroup, runStart, runEnd, runCount);
+	}
+    }
+
+
+    private byte[] wrapperOpen(int d) {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	for(int kk = 0; kk <= d; kk++) {
+	    bos.write(ancestorTags[kk], 0, ancestorTags[kk].length);
+	}
+	return bos.toByteArray();
+    }
+
+
+    private byte[] wrapperClose(int d) {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	for(int kk = d; kk >= 0; kk--) {
+	    bos.write('<');
+	    bos.write('/');
+	    bos.write(ancestorNames[kk], 0, ancestorNames[kk].length);
+	    bos.write('>');
+	}
+	return bos.toByteArray();
+    }
+
+
+    private void appendName(byte b) {
+	if(nameLen == name.length) {
+	    name = java.util.Arrays.copyOf(name, nameLen * 2);
+	}
+	name[nameLen++] = b;
+    }
+
+
+    private boolean localNameIs(byte[] seg) {
+	int off = colon + 1;
+	int n = nameLen - off;
+	if(n != seg.length) {
+	    return false;
+	}
+	for(int kk = 0; kk < n; kk++) {
+	    if(name[off + kk] != seg[kk]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+
+    private static boolean isWs(byte b) {
+	return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+}
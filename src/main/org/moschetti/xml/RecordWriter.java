@@ -0,0 +1,86 @@
+package org.moschetti.xml;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.Closeable;
+
+import java.util.Map;
+
+/**
+ *  Push-based cousin of Map2XML.writeXML() for exports too big to hold
+ *  as one Map.   The output is exactly what writeXML() would produce for
+ *  a root Map with a single List of the records:
+ *  <pre>
+ *     &lt;rootTag&gt;
+ *       &lt;recordTag_LIST&gt;
+ *         &lt;recordTag&gt;
+ *           ...
+ *         &lt;/recordTag&gt;
+ *         ...
+ *       &lt;/recordTag_LIST&gt;
+ *     &lt;/rootTag&gt;
+ *  </pre>
+ *  but each record is written (and can be dropped) as soon as it is
+ *  handed over, so memory use does not grow with the number of records.
+ *
+ *  The start tags are written on construction.   close() writes the end
+ *  tags and flushes what is buffered, but does NOT close the underlying
+ *  OutputStream; that still belongs to the caller.
+ */
+public class RecordWriter implements Closeable {
+
+    private final XmlWriter w;
+    private final String rootTag;
+    private final String recordTag;
+
+    private boolean closed = false;
+
+
+    RecordWriter(OutputStream out, String rootTag, String recordTag, Map2XML.WriteOptions options)
+	throws IOException
+    {
+	this.w = Map2XML.newWriter(out, options);
+	this.rootTag = rootTag;
+	this.recordTag = recordTag;
+
+	w.open(rootTag, 0, false);
+	w.open(recordTag, 1, true);
+    }
+
+
+    /**
+     *  A null record is skipped, like a null List element in writeXML().
+     */
+    public void writeRecord(Map<String,Object> record)
+	throws IOException
+    {
+	if(closed) {
+	    throw new IllegalStateException("RecordWriter is closed");
+	}
+	if(record != null) {
+	    w.map(recordTag, record, 2);
+	}
+    }
+
+
+    /**
+     *  Push what is buffered so far to the OutputStream.
+     */
+    public void flush()
+	throws IOException
+    {
+	w.flush();
+    }
+
+
+    public void close()
+	throws IOException
+    {
+	if(!closed) {
+	    closed = true;
+	    w.close(recordTag, 1, true);
+	    w.close(rootTag, 0, false);
+	    w.flush();
+	}
+    }
+}
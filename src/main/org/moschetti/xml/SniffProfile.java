@@ -0,0 +1,193 @@
+package org.moschetti.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Learns, per element path, whether convertNumbers / convertDates ever
+ *  turn anything up.  Feeds of the same shape tend to have lots of
+ *  fields that are never numbers or dates (names, codes, free text) and
+ *  sniffing every one of them every time is wasted work.   Once a path
+ *  has missed missLimit times without a single hit it is marked "always
+ *  string" and its values are no longer sniffed at all.
+ *  <pre>
+ *  SniffProfile prof = SniffProfile.read(in);   // or new SniffProfile()
+ *  opts.convertNumbers = true;
+ *  opts.sniffProfile = prof;
+ *  ... parse, parse, parse ...
+ *  prof.write(out);                             // for next time
+ *  </pre>
+ *  Thread safe; share one across parses, threads and XmlParserTemplates.
+ *  The counts are only approximate under concurrent use (they are
+ *  deliberately not atomic), which is plenty for this purpose.  Empty
+ *  values do not count either way.   Note that once a path is marked,
+ *  a later value at that path that DOES look like a number stays a
+ *  String; that is the trade.   Only eager parses learn;
+ *  lazyConversion parses just use what is already known.
+ *
+ *  The saved form is a simple tab-separated text file, one path per
+ *  line:  path, hits, misses.
+ */
+public class SniffProfile {
+
+    public static final int DEFAULT_MISS_LIMIT = 32;
+
+    private final int missLimit;
+
+    private final ConcurrentHashMap<String,Stat> stats = new ConcurrentHashMap<String,Stat>();
+
+
+    static final class Stat {
+	int hits;
+	int misses;
+	volatile boolean alwaysString;
+
+	void record(boolean hit, int missLimit) {
+	    if(hit) {
+		if(hits < Integer.MAX_VALUE) {
+		    hits++;
+		}
+	    } else if(misses < Integer.MAX_VALUE && ++misses >= missLimit && hits == 0) {
+		alwaysString = true;
+	    }
+	}
+    }
+
+
+    public SniffProfile() {
+	this(DEFAULT_MISS_LIMIT);
+    }
+
+    /**
+     *  missLimit is the number of misses (with no hits) before a path is
+     *  considered to be always a string.
+     */
+    public SniffProfile(int missLimit) {
+	this.missLimit = missLimit < 1 ? 1 : missLimit;
+    }
+
+
+    int missLimit() {
+	return missLimit;
+    }
+
+
+    /**
+     *  The (shared, live) Stat for path, e.g. "/feed/item/name".
+     */
+    Stat stat(String path) {
+	Stat s = stats.get(path);
+	if(s == null) {
+	    Stat ns = new Stat();
+	    s = stats.putIfAbsent(path, ns);
+	    if(s == null) {
+		s = ns;
+	    }
+	}
+	return s;
+    }
+
+
+    /**
+     *  Paths that are currently not being sniffed.
+     */
+    public Set<String> stringPaths() {
+	Set<String> s = new TreeSet<String>();
+	for(Map.Entry<String,Stat> e : stats.entrySet()) {
+	    if(e.getValue().alwaysString) {
+		s.add(e.getKey());
+	    }
+	}
+	return s;
+    }
+
+
+    /**
+     *  Forget everything.  HashHandlers already holding on to paths keep
+     *  their old answers until they are reconfigured; use a new
+     *  SniffProfile if that matters.
+     */
+    public void clear() {
+	stats.clear();
+    }
+
+
+    /**
+     *  Save, sorted by path.  Paths with no leaf values yet are left
+     *  out.   out is flushed but not closed.
+     */
+    public void write(OutputStream out)
+	throws IOException
+    {
+	Map<String,Stat> sorted = new TreeMap<String,Stat>(stats);
+
+	Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+	for(Map.Entry<String,Stat> e : sorted.entrySet()) {
+	    Stat s = e.getValue();
+	    if(s.hits == 0 && s.misses == 0) {
+		continue; // structure, not leaves
+	    }
+	    w.write(e.getKey() + "\t" + s.hits + "\t" + s.misses + "\n");
+	}
+	w.flush();
+    }
+
+
+    public static SniffProfile read(InputStream in)
+	throws IOException
+    {
+	return read(in, DEFAULT_MISS_LIMIT);
+    }
+
+
+    /**
+     *  Load a profile saved with write().  The always-string marks are
+     *  recomputed from the counts using missLimit, so a profile can be
+     *  reloaded with a stricter or looser limit.  Blank lines and lines
+     *  starting with # are ignored.  in is not closed.
+     */
+    public static SniffProfile read(InputStream in, int missLimit)
+	throws IOException
+    {
+	SniffProfile p = new SniffProfile(missLimit);
+
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+	String line;
+	int ln = 0;
+
+	while((line = r.readLine()) != null) {
+	    ln++;
+	    if(line.length() == 0 || line.startsWith("#")) {
+		continue;
+	    }
+	    String[] f = line.split("\t");
+	    if(f.length != 3) {
+		throw new IOException("bad sniff profile line " + ln + ": [" + line + "]");
+	    }
+	    Stat s = p.stat(f[0]);
+	    try {
+		s.hits = Integer.parseInt(f[1]);
+		s.misses = Integer.parseInt(f[2]);
+	    } catch(NumberFormatException e) {
+		throw new IOException("bad sniff profile line " + ln + ": [" + line + "]");
+	    }
+	    s.alwaysString = (s.hits == 0 && s.misses >= p.missLimit);
+	}
+
+	return p;
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.moschetti.xml;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Canonicalizes tag and attribute names so that the 10 million
+ *  <tt>amount</tt> keys in a big document are all the SAME String
+ *  instance.   Besides the heap savings, String caches its hash, so
+ *  every Map lookup on a canonical key skips rehashing the chars.
+ *
+ *  The table is bounded: once maxSize names are held, new names are
+ *  simply passed thru as-is (a runaway document with millions of
+ *  distinct tag names will not eat the heap).   A table made with the
+ *  public constructors is thread safe, so one can be shared across
+ *  parses and threads via ParseOptions.symbolTable.   The private one
+ *  that internNames makes for a single parse skips the locking and is
+ *  a plain HashMap.
+ */
+public class SymbolTable {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final int maxSize;
+    private final Map<String,String> table;
+
+
+    public SymbolTable() {
+	this(DEFAULT_MAX_SIZE);
+    }
+
+    public SymbolTable(int maxSize) {
+	this(maxSize, true);
+    }
+
+    /**
+     *  Not shared: for one HashHandler only.
+     */
+    SymbolTable(int maxSize, boolean shared) {
+	this.maxSize = maxSize;
+	int cap = Math.min(maxSize, 256);
+	this.table = shared ? new ConcurrentHashMap<String,String>(cap) : new HashMap<String,String>(cap);
+    }
+
+
+    /**
+     *  Returns the canonical instance of s, or s itself if it has not
+     *  been seen and the table is full.
+     */
+    public String intern(String s) {
+	if(s == null) {
+	    return null;
+	}
+
+	String c = table.get(s);
+	if(c != null) {
+	    return c;
+	}
+
+	if(table.size() >= maxSize) {
+	    return s;
+	}
+
+	c = table.putIfAbsent(s, s);
+	return (c == null) ? s : c;
+    }
+
+
+    public int size() {
+	return table.size();
+    }
+
+}
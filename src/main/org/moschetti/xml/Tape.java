@@ -0,0 +1,145 @@
+package org.moschetti.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.ArrayList;
+
+/**
+ *  Append-only off-heap storage for TapeDocument: a growing series of
+ *  direct ByteBuffers.   Nothing stored here is a Java object, so none
+ *  of it is ever looked at by the garbage collector.
+ *
+ *  alloc() hands out contiguous pieces that never straddle two blocks;
+ *  the returned address is (block &lt;&lt; 32) | offset.  Blocks start small
+ *  so little documents stay little and double up to MAX_BLOCK.  Once
+ *  built, any number of threads may read at once (only absolute gets
+ *  are used).
+ */
+final class Tape {
+
+    static final int FIRST_BLOCK = 1 << 14;
+    static final int MAX_BLOCK = 1 << 24;
+
+    private final ArrayList<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+    private ByteBuffer cur = null;
+    private long used = 0;
+    private long capacity = 0;
+
+
+    /**
+     *  Reserve n contiguous bytes and return their address.
+     */
+    long alloc(int n) {
+	if(cur == null || cur.capacity() - cur.position() < n) {
+	    int cap = (cur == null) ? FIRST_BLOCK : Math.min(MAX_BLOCK, cur.capacity() * 2);
+	    cur = ByteBuffer.allocateDirect(Math.max(cap, n)).order(ByteOrder.nativeOrder());
+	    blocks.add(cur);
+	    capacity += cur.capacity();
+	}
+	int off = cur.position();
+	cur.position(off + n);
+	used += n;
+	return ((long)(blocks.size() - 1) << 32) | off;
+    }
+
+
+    /**
+     *  Bytes handed out by alloc(), and bytes actually held off-heap.
+     */
+    long used() {
+	return used;
+    }
+
+    long capacity() {
+	return capacity;
+    }
+
+
+    private ByteBuffer block(long addr) {
+	return blocks.get((int)(addr >>> 32));
+    }
+
+
+    int getInt(long addr) {
+	return block(addr).getInt((int)addr);
+    }
+
+    void putInt(long addr, int v) {
+	block(addr).putInt((int)addr, v);
+    }
+
+    long getLong(long addr) {
+	return block(addr).getLong((int)addr);
+    }
+
+    void putLong(long addr, long v) {
+	block(addr).putLong((int)addr, v);
+    }
+
+
+    /**
+     *  Store chars [0, len) of src, one byte each if they all fit in
+     *  Latin-1, else two.  Returns the address; the length and width
+     *  go back thru encoded() for the caller to keep.
+     */
+    long putText(CharSequence src, int len, boolean latin1) {
+	long addr = alloc(latin1 ? len : len * 2);
+	ByteBuffer bb = block(addr);
+	int off = (int)addr;
+
+	if(latin1) {
+	    for(int kk = 0; kk < len; kk++) {
+		bb.put(off + kk, (byte)src.charAt(kk));
+	    }
+	} else {
+	    for(int kk = 0; kk < len; kk++) {
+		bb.putChar(off + kk * 2, src.charAt(kk));
+	    }
+	}
+	return addr;
+    }
+
+
+    static boolean isLatin1(CharSequence src, int len) {
+	for(int kk = 0; kk < len; kk++) {
+	    if(src.charAt(kk) > 0xff) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     *  Text length and width packed into one int (never negative).
+     */
+    static int encoded(int len, boolean latin1) {
+	return (len << 1) | (latin1 ? 1 : 0);
+    }
+
+    static int decodedLength(int enc) {
+	return enc >>> 1;
+    }
+
+
+    /**
+     *  Load text stored with putText() into dst, which must have room
+     *  for decodedLength(enc) chars.
+     */
+    void getText(long addr, int enc, char[] dst) {
+	ByteBuffer bb = block(addr);
+	int off = (int)addr;
+	int len = enc >>> 1;
+
+	if((enc & 1) != 0) {
+	    for(int kk = 0; kk < len; kk++) {
+		dst[kk] = (char)(bb.get(off + kk) & 0xff);
+	    }
+	} else {
+	    for(int kk = 0; kk < len; kk++) {
+		dst[kk] = bb.getChar(off + kk * 2);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,295 @@
+package org.moschetti.xml;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Arrays;
+
+/**
+ *  SAX handler that records a document onto off-heap Tapes for
+ *  TapeDocument instead of building Maps.   Every kept element becomes
+ *  one fixed size node:
+ *  <pre>
+ *     0  name id          int
+ *     4  namespace id     int   (-1 if none)
+ *     8  text             int   (Tape.encoded() length, or STRUCT)
+ *    12  attribute count  int
+ *    16  text address     long
+ *    24  attributes       long  (address of the first ATTR record)
+ *    32  first child      long  (NONE if no child elements)
+ *    40  next sibling     long  (NONE if last)
+ *  </pre>
+ *  and each attribute a 16 byte record (name id, encoded length, text
+ *  address).   Names and namespace URIs are interned into one table
+ *  and referred to by id.
+ *
+ *  Text is kept with the same rules as HashHandler: only an element
+ *  with no child elements has a value; text next to child elements is
+ *  dropped.   Include / exclude projection works the same way too (see
+ *  HashHandler.setProjection); type hints and conversions are applied
+ *  later, by TapeDocument, when values are looked at.
+ */
+final class TapeBuilder extends org.xml.sax.helpers.DefaultHandler {
+
+    static final int NODE = 48;
+    static final int N_NAME = 0;
+    static final int N_URI = 4;
+    static final int N_TEXT_LEN = 8;
+    static final int N_ATTRS = 12;
+    static final int N_TEXT = 16;
+    static final int N_ATTR = 24;
+    static final int N_KID = 32;
+    static final int N_NEXT = 40;
+
+    static final int ATTR = 16;
+    static final int A_NAME = 0;
+    static final int A_TEXT_LEN = 4;
+    static final int A_TEXT = 8;
+
+    /**
+     *  N_TEXT_LEN of an element that turned out to be a structure.
+     */
+    static final int STRUCT = -1;
+
+    static final long NONE = -1;
+
+
+    final Tape nodes = new Tape();
+    final Tape attrs = new Tape();
+    final Tape text = new Tape();
+
+    final ArrayList<String> names = new ArrayList<String>();
+    private final HashMap<String,Integer> ids = new HashMap<String,Integer>();
+
+    final HashMap<String,String> namespaces = new HashMap<String,String>();
+
+    /**
+     *  The root element, or NONE if there was nothing (kept).
+     */
+    long first = NONE;
+    int count = 0;
+
+    /**
+     *  open[d] is the node of the element open at depth d, lastKid[d]
+     *  its most recent child and kids[d] whether it is a structure.
+     */
+    private long[] open = new long[16];
+    private long[] lastKid = new long[16];
+    private boolean[] kids = new boolean[16];
+    private int depth = 0;
+
+    private final StringBuilder carr = new StringBuilder();
+
+    /**
+     *  Projection; same bookkeeping as HashHandler but indexed like
+     *  open[], i.e. pnodes[d + 1] goes with open[d].
+     */
+    private final boolean dropAttributes;
+
+    private final PathTrie paths;
+    private final boolean filtering;
+    private final boolean stopWhenSeen;
+    private PathTrie.Node[] pnodes = new PathTrie.Node[17];
+    private boolean[] inside = new boolean[17];
+    private int skipping = 0;
+    private final boolean[] seen;
+    private int seenCount = 0;
+    private boolean stopped = false;
+
+    @SuppressWarnings("serial")
+    private static final class StopParsing extends SAXException {
+	StopParsing() {
+	    super("all included paths seen");
+	}
+    }
+
+
+    /**
+     *  paths may be null.  It is only read here, never grown.
+     */
+    TapeBuilder(PathTrie paths, boolean filtering, boolean stopWhenIncludesSeen, boolean dropAttributes) {
+	this.dropAttributes = dropAttributes;
+	this.paths = paths;
+	this.filtering = filtering && paths != null;
+	this.stopWhenSeen = this.filtering && stopWhenIncludesSeen && paths.includes() > 0;
+	this.seen = stopWhenSeen ? new boolean[paths.includes()] : null;
+
+	if(paths != null) {
+	    pnodes[0] = paths.root;
+	    inside[0] = paths.includes() == 0;
+	}
+    }
+
+
+    boolean stoppedEarly() {
+	return stopped;
+    }
+
+
+    private int id(String s) {
+	Integer i = ids.get(s);
+	if(i == null) {
+	    i = names.size();
+	    names.add(s);
+	    ids.put(s, i);
+	}
+	return i;
+    }
+
+
+    public void startPrefixMapping(String prefix, String uri) {
+	namespaces.put(uri, prefix);
+    }
+
+
+    public void startElement(String uri, String localName, String qName, Attributes a) {
+	if(skipping > 0) {
+	    skipping++;
+	    return;
+	}
+
+	if(filtering && !enter(localName)) {
+	    skipping = 1;
+	    if(depth > 0 && !kids[depth - 1]) {
+		// The parent has element content after all, even if
+		// we are not keeping it:
+		kids[depth - 1] = true;
+		carr.setLength(0);
+	    }
+	    return;
+	}
+
+	long node = nodes.alloc(NODE);
+	count++;
+
+	nodes.putInt(node + N_NAME, id(localName));
+	nodes.putInt(node + N_URI, (uri == null || uri.length() == 0) ? -1 : id(uri));
+	nodes.putInt(node + N_TEXT_LEN, STRUCT);
+	nodes.putLong(node + N_KID, NONE);
+	nodes.putLong(node + N_NEXT, NONE);
+
+	int n = dropAttributes ? 0 : a.getLength();
+	nodes.putInt(node + N_ATTRS, n);
+	if(n > 0) {
+	    long aa = attrs.alloc(n * ATTR);
+	    for(int kk = 0; kk < n; kk++) {
+		long at = aa + kk * ATTR;
+		attrs.putInt(at + A_NAME, id(a.getLocalName(kk)));
+		putText(attrs, at + A_TEXT_LEN, at + A_TEXT, a.getValue(kk));
+	    }
+	    nodes.putLong(node + N_ATTR, aa);
+	}
+
+	// Link it in:
+	if(depth == 0) {
+	    if(first == NONE) {
+		first = node;
+	    }
+	} else {
+	    int p = depth - 1;
+	    if(lastKid[p] == NONE) {
+		nodes.putLong(open[p] + N_KID, node);
+	    } else {
+		nodes.putLong(lastKid[p] + N_NEXT, node);
+	    }
+	    lastKid[p] = node;
+	    kids[p] = true;
+	}
+
+	carr.setLength(0);
+
+	if(depth == open.length) {
+	    open = Arrays.copyOf(open, depth * 2);
+	    lastKid = Arrays.copyOf(lastKid, depth * 2);
+	    kids = Arrays.copyOf(kids, depth * 2);
+	}
+	open[depth] = node;
+	lastKid[depth] = NONE;
+	kids[depth] = false;
+	depth++;
+    }
+
+
+    public void characters(char[] ch, int start, int len) {
+	if(skipping == 0 && depth > 0 && !kids[depth - 1]) {
+	    carr.append(ch, start, len);
+	}
+    }
+
+
+    public void endElement(String uri, String localName, String qName)
+	throws SAXException
+    {
+	if(skipping > 0) {
+	    skipping--;
+	    return;
+	}
+
+	close();
+
+	if(stopWhenSeen) {
+	    PathTrie.Node n = pnodes[depth + 1];
+	    if(n != null && n.includeId >= 0 && !seen[n.includeId]) {
+		seen[n.includeId] = true;
+		if(++seenCount == seen.length) {
+		    stopped = true;
+		    while(depth > 0) {
+			close();
+		    }
+		    throw new StopParsing();
+		}
+	    }
+	}
+    }
+
+
+    /**
+     *  Finish the innermost open element.
+     */
+    private void close() {
+	depth--;
+	long node = open[depth];
+
+	if(!kids[depth]) {
+	    putText(nodes, node + N_TEXT_LEN, node + N_TEXT, carr);
+	}
+	carr.setLength(0);
+    }
+
+
+    private void putText(Tape t, long lenAt, long addrAt, CharSequence s) {
+	int len = s.length();
+	boolean latin1 = Tape.isLatin1(s, len);
+
+	t.putLong(addrAt, (len == 0) ? 0 : text.putText(s, len, latin1));
+	t.putInt(lenAt, Tape.encoded(len, latin1));
+    }
+
+
+    /**
+     *  Same as HashHandler.enter(); false means skip.
+     */
+    private boolean enter(String localName) {
+	PathTrie.Node parent = pnodes[depth];
+	PathTrie.Node n = (parent == null) ? null : parent.kids.get(localName);
+
+	boolean in = inside[depth] || (n != null && n.include);
+
+	if((n != null && n.exclude) || (!in && (n == null || !n.leadsToInclude))) {
+	    return false;
+	}
+
+	int d = depth + 1;
+	if(d == pnodes.length) {
+	    pnodes = Arrays.copyOf(pnodes, d * 2);
+	    inside = Arrays.copyOf(inside, d * 2);
+	}
+	pnodes[d] = n;
+	inside[d] = in;
+
+	return true;
+    }
+
+}
@@ -0,0 +1,408 @@
+package org.moschetti.xml;
+
+import javax.xml.parsers.SAXParser;
+
+import java.io.InputStream;
+
+import java.lang.ref.SoftReference;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.Collections;
+import java.util.Arrays;
+
+import static org.moschetti.xml.TapeBuilder.*;
+
+/**
+ *  A parsed document held off-heap (see XMLUtils.parseToTape).  The
+ *  elements, attributes and text sit in direct ByteBuffers; the heap
+ *  only holds the name table.  getRootMap() gives a read-only Map view
+ *  with exactly the shape parseXML() would have produced with the same
+ *  ParseOptions:  List-ified repeats, <tt>__attributes_</tt> peers
+ *  (padded with nulls), storeBlanks, namespaceField, convertNumbers,
+ *  convertDates, type hints and so on.
+ *  <pre>
+ *  TapeDocument doc = XMLUtils.parseToTape(Paths.get("huge.xml"), opts);
+ *  Map m = (Map) doc.getRootMap().get("feed");
+ *  List items = (List) m.get("item");    // one level built, nothing below
+ *  </pre>
+ *  Each Map is built one level at a time when first touched: its leaf
+ *  values are converted then, and child structures are just more
+ *  unbuilt views.  Built levels are only softly held so the garbage
+ *  collector can drop (and we rebuild) whatever you are not holding
+ *  on to.  The Maps come back in document order.  Any number of
+ *  threads can read a TapeDocument at once.
+ *
+ *  The off-heap memory goes away when the TapeDocument and all the
+ *  views taken from it are unreachable.
+ */
+public final class TapeDocument {
+
+    private final Tape nodes;
+    private final Tape attrs;
+    private final Tape text;
+    private final String[] names;
+    private final String[] attrKeys;
+    private final int count;
+
+    private final Map<String,String> namespaces;
+    private final Map<String,Object> root;
+
+    private final boolean storeBlanks;
+    private final boolean convertNumbers;
+    private final boolean convertDates;
+    private final boolean useBigDecimal;
+    private final String apfx;
+    private final String namespaceField;
+    private final DateSniffer dates;
+
+    /**
+     *  For type hints and the SniffProfile; may be null.
+     */
+    private final PathTrie paths;
+    private final SniffProfile profile;
+
+    /**
+     *  Scratch for leaf text; guarded by this.
+     */
+    private char[] buf = new char[64];
+
+
+    TapeDocument(TapeBuilder tb, XMLUtils.ParseOptions options, PathTrie paths, SniffProfile profile, long nanos) {
+	this.nodes = tb.nodes;
+	this.attrs = tb.attrs;
+	this.text = tb.text;
+	this.names = tb.names.toArray(new String[tb.names.size()]);
+	this.attrKeys = new String[names.length];
+	this.count = tb.count;
+	this.namespaces = Collections.unmodifiableMap(tb.namespaces);
+
+	this.storeBlanks = options.storeBlanks;
+	this.convertNumbers = options.convertNumbers;
+	this.convertDates = options.convertDates;
+	this.useBigDecimal = options.useBigDecimal;
+	this.apfx = (options.attributePrefix != null) ? options.attributePrefix : "__attributes_";
+	this.namespaceField = options.namespaceField;
+	this.dates = new DateSniffer(options.dateType == XMLUtils.ParseOptions.DATES_AS_JAVA_TIME);
+
+	this.paths = paths;
+	this.profile = profile;
+
+	Map<String,Object> m = build(tb.first, (paths == null) ? null : paths.root, -1);
+	if(options.parseTimeInNanosField != null) {
+	    m.put(options.parseTimeInNanosField, nanos);
+	}
+	this.root = Collections.unmodifiableMap(m);
+    }
+
+
+    /**
+     *  saxParser may be null, in which case a new one is made.
+     */
+    static TapeDocument parse(SAXParser saxParser, InputStream is, XMLUtils.ParseOptions options)
+	throws XMLParsingException
+    {
+	SniffProfile profile = (options.convertNumbers || options.convertDates) ? options.sniffProfile : null;
+
+	PathTrie paths = null;
+	if(profile != null || options.typeHints != null || options.includePaths != null || options.excludePaths != null) {
+	    paths = new PathTrie();
+	}
+
+	if(options.typeHints != null) {
+	    DateSniffer utilDates = new DateSniffer(false);
+	    DateSniffer javaDates = new DateSniffer(true);
+	    for(Map.Entry<String,Object> e : options.typeHints.entrySet()) {
+		paths.add(e.getKey()).converter = ValueConverters.forType(e.getValue(), utilDates, javaDates);
+	    }
+	}
+
+	boolean filtering = false;
+	if(options.includePaths != null) {
+	    for(String p : options.includePaths) {
+		paths.include(p);
+	    }
+	    filtering = !options.includePaths.isEmpty();
+	}
+	if(options.excludePaths != null) {
+	    for(String p : options.excludePaths) {
+		paths.exclude(p);
+	    }
+	    filtering |= !options.excludePaths.isEmpty();
+	}
+
+	TapeBuilder tb = new TapeBuilder(paths, filtering, options.stopWhenIncludesSeen,
+					 options.attributeStorage == XMLUtils.ParseOptions.ATTRIBUTES_DROP);
+
+	long startTime = System.nanoTime();
+	XMLUtils.runParse(saxParser, is, tb, tb::stoppedEarly);
+	long nanos = System.nanoTime() - startTime;
+
+	return new TapeDocument(tb, options, paths, profile, nanos);
+    }
+
+
+    /**
+     *  The whole document as parseXML() would return it, but read-only.
+     */
+    public Map<String,Object> getRootMap() {
+	return root;
+    }
+
+    public Map<String,String> getNamespaces() {
+	return namespaces;
+    }
+
+    /**
+     *  Number of elements held.
+     */
+    public int elementCount() {
+	return count;
+    }
+
+    /**
+     *  Off-heap memory held, in bytes.
+     */
+    public long offHeapBytes() {
+	return nodes.capacity() + attrs.capacity() + text.capacity();
+    }
+
+
+
+    /**
+     *  Build one level: the Map for an element whose first child is kid
+     *  (NONE for an element with no kept children).   Mirrors what
+     *  HashHandler does as the children go by: addValue() and
+     *  putAttrsInMap() for each, then the namespace.
+     */
+    private synchronized Map<String,Object> build(long kid, PathTrie.Node pn, int uri) {
+	Map<String,Object> m = new LinkedHashMap<String,Object>();
+
+	for(long k = kid; k != NONE; k = nodes.getLong(k + N_NEXT)) {
+	    int id = nodes.getInt(k + N_NAME);
+	    String tag = names[id];
+	    PathTrie.Node cn = child(pn, tag);
+
+	    int enc = nodes.getInt(k + N_TEXT_LEN);
+	    if(enc == STRUCT) {
+		addValue(m, tag, new TapeMap(k, cn));
+	    } else if(Tape.decodedLength(enc) > 0 || storeBlanks) {
+		addValue(m, tag, leafValue(nodes.getLong(k + N_TEXT), enc, cn));
+	    }
+
+	    putAttrsInMap(m, id, attributes(k));
+	}
+
+	if(namespaceField != null && uri >= 0) {
+	    m.put(namespaceField, names[uri]);
+	}
+
+	// Hand out only read-only pieces:
+	for(Map.Entry<String,Object> e : m.entrySet()) {
+	    Object o = e.getValue();
+	    if(o instanceof List) {
+		e.setValue(Collections.unmodifiableList((List)o));
+	    }
+	}
+
+	return m;
+    }
+
+
+    private PathTrie.Node child(PathTrie.Node pn, String tag) {
+	if(pn == null) {
+	    return null;
+	}
+	PathTrie.Node n = pn.kids.get(tag);
+	if(profile != null) {
+	    if(n == null) {
+		n = paths.grow(pn, tag);
+	    }
+	    if(n != null && n.stat == null) {
+		n.stat = profile.stat(n.path);
+	    }
+	}
+	return n;
+    }
+
+
+    private static void addValue(Map<String,Object> m, String tag, Object value) {
+	Object o = m.get(tag);
+
+	if(o == null) {
+	    m.put(tag, value);
+	} else if(o instanceof List) {
+	    ((List)o).add(value);
+	} else {
+	    List v = new ArrayList();
+	    v.add(o);
+	    v.add(value);
+	    m.put(tag, v);
+	}
+    }
+
+
+    /**
+     *  Same rules as HashHandler.putAttrsInMap().
+     */
+    private void putAttrsInMap(Map<String,Object> m, int id, Map<String,Object> am) {
+	String atag = attrKeys[id];
+	if(atag == null) {
+	    atag = attrKeys[id] = apfx + names[id];
+	}
+
+	Object o = m.get(atag);
+	Object o2 = m.get(names[id]);
+
+	if(o == null) {
+	    if(am != null) {
+		if(o2 instanceof List) {
+		    List a = new ArrayList();
+		    int len = ((List)o2).size();
+		    for(int kk = 0; kk < len - 1; kk++) {
+			a.add(null);
+		    }
+		    a.add(am);
+		    m.put(atag, a);
+		} else {
+		    m.put(atag, am);
+		}
+	    }
+	} else if(o instanceof List) {
+	    ((List)o).add(am);
+	} else {
+	    List a = new ArrayList();
+	    a.add(o);
+	    a.add(am);
+	    m.put(atag, a);
+	}
+    }
+
+
+    private Map<String,Object> attributes(long node) {
+	int n = nodes.getInt(node + N_ATTRS);
+	if(n == 0) {
+	    return null;
+	}
+
+	Object[] kv = new Object[n * 2];
+	int k = 0;
+	long aa = nodes.getLong(node + N_ATTR);
+	for(int kk = 0; kk < n; kk++) {
+	    long at = aa + kk * ATTR;
+	    String name = names[attrs.getInt(at + A_NAME)];
+	    int enc = attrs.getInt(at + A_TEXT_LEN);
+	    String value = new String(load(attrs.getLong(at + A_TEXT), enc), 0, Tape.decodedLength(enc));
+
+	    // Names are interned so == will do; a later duplicate wins.
+	    int i = 0;
+	    while(i < k && kv[i] != name) {
+		i += 2;
+	    }
+	    kv[i] = name;
+	    kv[i + 1] = value;
+	    if(i == k) {
+		k += 2;
+	    }
+	}
+	return new AttributeMap((k == kv.length) ? kv : Arrays.copyOf(kv, k));
+    }
+
+
+    private char[] load(long addr, int enc) {
+	int len = Tape.decodedLength(enc);
+	if(len > buf.length) {
+	    buf = new char[len + 1];
+	}
+	if(len > 0) {
+	    text.getText(addr, enc, buf);
+	}
+	return buf;
+    }
+
+
+    /**
+     *  Same rules as HashHandler.leafValue(), minus the value cache.
+     */
+    private Object leafValue(long addr, int enc, PathTrie.Node n) {
+	char[] b = load(addr, enc);
+	int len = Tape.decodedLength(enc);
+
+	SniffProfile.Stat stat = null;
+
+	if(n != null) {
+	    if(n.converter != null) {
+		Object value = n.converter.convert(b, 0, len);
+		return (value != null) ? value : new String(b, 0, len);
+	    }
+	    stat = n.stat;
+	    if(stat != null && stat.alwaysString) {
+		return new String(b, 0, len);
+	    }
+	}
+
+	Object value = null;
+
+	if(convertNumbers) {
+	    value = NumberSniffer.sniff(b, 0, len, useBigDecimal);
+	}
+	if(value == null && convertDates) {
+	    value = dates.sniff(b, 0, len);
+	}
+
+	if(stat != null && len > 0) {
+	    stat.record(value != null, profile.missLimit());
+	}
+
+	return (value != null) ? value : new String(b, 0, len);
+    }
+
+
+
+    /**
+     *  Read-only view of one element, built on first touch.
+     */
+    private final class TapeMap extends AbstractMap<String,Object> {
+
+	private final long node;
+	private final PathTrie.Node pn;
+
+	private volatile SoftReference<Map<String,Object>> level = null;
+
+	TapeMap(long node, PathTrie.Node pn) {
+	    this.node = node;
+	    this.pn = pn;
+	}
+
+	private Map<String,Object> level() {
+	    SoftReference<Map<String,Object>> ref = level;
+	    Map<String,Object> m = (ref == null) ? null : ref.get();
+	    if(m == null) {
+		m = Collections.unmodifiableMap(build(nodes.getLong(node + N_KID), pn, nodes.getInt(node + N_URI)));
+		level = new SoftReference<Map<String,Object>>(m);
+	    }
+	    return m;
+	}
+
+	public Set<Map.Entry<String,Object>> entrySet() {
+	    return level().entrySet();
+	}
+
+	public Object get(Object key) {
+	    return level().get(key);
+	}
+
+	public boolean containsKey(Object key) {
+	    return level().containsKey(key);
+	}
+
+	public int size() {
+	    return level().size();
+	}
+    }
+
+}
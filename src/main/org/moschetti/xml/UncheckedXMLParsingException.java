@@ -0,0 +1,20 @@
+package org.moschetti.xml;
+
+/**
+ * Wraps an XMLParsingException where the API cannot throw a checked
+ * exception, e.g. from inside Iterator.next() or a Stream pipeline.
+ * The original XMLParsingException is available via getCause().
+ */
+@SuppressWarnings("serial")
+public class UncheckedXMLParsingException extends RuntimeException {
+
+    public UncheckedXMLParsingException(XMLParsingException cause) {
+	super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public XMLParsingException getCause() {
+	return (XMLParsingException) super.getCause();
+    }
+
+}
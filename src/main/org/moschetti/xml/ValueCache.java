@@ -0,0 +1,82 @@
+package org.moschetti.xml;
+
+/**
+ *  Dedup cache for short leaf values.  Real feeds repeat the same status
+ *  codes, currency codes, country names, small numbers, etc. millions of
+ *  times; without this every one of them is a brand new String (or
+ *  Integer, etc.) in the output.
+ *
+ *  Lookup is done against the raw chars, so a hit allocates nothing and
+ *  hands back the one canonical value (String, or the already-converted
+ *  Integer / Long / Double / BigDecimal / java.time object).  Mutable
+ *  values (java.util.Date) are never stored.
+ *
+ *  It is a plain direct-mapped table: each text hashes to exactly one
+ *  slot and a newcomer simply evicts whatever was there.  Crude, but
+ *  it is bounded, branch-light, and frequent values naturally win the
+ *  slots.   Not thread safe; one per HashHandler.
+ */
+final class ValueCache {
+
+    /**
+     *  Longer values are rarely repeated and are not worth hashing.
+     */
+    static final int MAX_LENGTH = 32;
+
+    private final String[] texts;
+    private final Object[] values;
+    private final int mask;
+
+
+    /**
+     *  size is rounded up to a power of 2.
+     */
+    ValueCache(int size) {
+	int n = 16;
+	while(n < size && n < (1 << 30)) {
+	    n <<= 1;
+	}
+	texts = new String[n];
+	values = new Object[n];
+	mask = n - 1;
+    }
+
+
+    static int hash(char[] buf, int off, int len) {
+	int h = 0;
+	for(int i = off; i < off + len; i++) {
+	    h = 31 * h + buf[i];
+	}
+	return h ^ (h >>> 16);
+    }
+
+
+    /**
+     *  The cached value for buf[off..off+len), or null if not present.
+     */
+    Object get(char[] buf, int off, int len, int hash) {
+	int slot = hash & mask;
+	String t = texts[slot];
+
+	if(t == null || t.length() != len) {
+	    return null;
+	}
+	for(int i = 0; i < len; i++) {
+	    if(t.charAt(i) != buf[off + i]) {
+		return null;
+	    }
+	}
+	return values[slot];
+    }
+
+
+    void put(String text, Object value, int hash) {
+	if(value instanceof java.util.Date) {
+	    return;
+	}
+	int slot = hash & mask;
+	texts[slot] = text;
+	values[slot] = value;
+    }
+
+}
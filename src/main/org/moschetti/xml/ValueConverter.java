@@ -0,0 +1,25 @@
+package org.moschetti.xml;
+
+/**
+ *  Turns the text of a leaf element into a value.  Hook one up to a
+ *  path with ParseOptions.typeHint() to take over from the
+ *  convertNumbers / convertDates guesswork, e.g.
+ *  <pre>
+ *  opts.typeHint("/feed/item/sku", String.class);     // keep "00123" as is
+ *  opts.typeHint("/feed/item/qty", Integer.class);
+ *  opts.typeHint("/feed/item/flag", (buf, off, len) -&gt; len == 1 &amp;&amp; buf[off] == 'Y');
+ *  </pre>
+ *  The chars are NOT a copy and are only good for the duration of the
+ *  call.   A converter is called from one thread at a time per parse
+ *  but may be shared by parses running on different threads.
+ */
+@FunctionalInterface
+public interface ValueConverter {
+
+    /**
+     *  Return the value for buf[off..off+len), or null to keep the text
+     *  as a plain String.
+     */
+    Object convert(char[] buf, int off, int len);
+
+}
@@ -0,0 +1,202 @@
+package org.moschetti.xml;
+
+import java.math.BigDecimal;
+
+/**
+ *  The built-in ValueConverters behind ParseOptions.typeHint().  All of
+ *  them ignore leading/trailing whitespace and hand back null (i.e.
+ *  "keep the String") if the text does not fit the type, rather than
+ *  failing the parse.
+ */
+final class ValueConverters {
+
+    private ValueConverters() {}
+
+    private static final ValueConverter STRING = (buf, off, len) -> new String(buf, off, len);
+
+
+    /**
+     *  Anything typeHint() will take.
+     */
+    static boolean supported(Object type) {
+	return type instanceof ValueConverter
+	    || type == String.class
+	    || type == Integer.class || type == int.class
+	    || type == Long.class || type == long.class
+	    || type == Double.class || type == double.class
+	    || type == BigDecimal.class
+	    || type == Boolean.class || type == boolean.class
+	    || type == java.util.Date.class
+	    || type == java.time.temporal.Temporal.class;
+    }
+
+
+    /**
+     *  dates and javaDates are the owning HashHandler's sniffers for
+     *  java.util.Date and java.time respectively (they cache, and are
+     *  not thread safe, so are per handler).
+     */
+    static ValueConverter forType(Object type, DateSniffer dates, DateSniffer javaDates) {
+	if(type instanceof ValueConverter) {
+	    return (ValueConverter)type;
+	}
+	if(type == String.class) {
+	    return STRING;
+	}
+	if(type == Integer.class || type == int.class) {
+	    return ValueConverters::toInteger;
+	}
+	if(type == Long.class || type == long.class) {
+	    return ValueConverters::toLong;
+	}
+	if(type == Double.class || type == double.class) {
+	    return ValueConverters::toDouble;
+	}
+	if(type == BigDecimal.class) {
+	    return ValueConverters::toBigDecimal;
+	}
+	if(type == Boolean.class || type == boolean.class) {
+	    return ValueConverters::toBoolean;
+	}
+	if(type == java.util.Date.class) {
+	    return trimmed(dates::sniff);
+	}
+	if(type == java.time.temporal.Temporal.class) {
+	    return trimmed(javaDates::sniff);
+	}
+	throw new IllegalArgumentException("unsupported type hint: " + type);
+    }
+
+
+    private static ValueConverter trimmed(final ValueConverter vc) {
+	return (buf, off, len) -> {
+	    int b = start(buf, off, off + len);
+	    return vc.convert(buf, b, end(buf, b, off + len) - b);
+	};
+    }
+
+    private static int start(char[] buf, int off, int end) {
+	while(off < end && buf[off] <= ' ') {
+	    off++;
+	}
+	return off;
+    }
+
+    private static int end(char[] buf, int off, int end) {
+	while(end > off && buf[end - 1] <= ' ') {
+	    end--;
+	}
+	return end;
+    }
+
+
+    /**
+     *  [+|-]digits; leading zeroes are fine.  Accumulates negatively so
+     *  that Long.MIN_VALUE works.  null if not an integer or too big.
+     */
+    private static Long parseLong(char[] buf, int off, int len) {
+	int lim = off + len;
+	off = start(buf, off, lim);
+	int end = end(buf, off, lim);
+	if(off == end) {
+	    return null;
+	}
+
+	boolean neg = false;
+	if(buf[off] == '-' || buf[off] == '+') {
+	    neg = buf[off] == '-';
+	    off++;
+	    if(off == end) {
+		return null;
+	    }
+	}
+
+	long limit = neg ? Long.MIN_VALUE : -Long.MAX_VALUE;
+	long multmin = limit / 10;
+	long acc = 0;
+
+	for(int jj = off; jj < end; jj++) {
+	    int d = buf[jj] - '0';
+	    if(d < 0 || d > 9 || acc < multmin) {
+		return null;
+	    }
+	    acc *= 10;
+	    if(acc < limit + d) {
+		return null;
+	    }
+	    acc -= d;
+	}
+
+	return Long.valueOf(neg ? acc : -acc);
+    }
+
+
+    private static Object toLong(char[] buf, int off, int len) {
+	return parseLong(buf, off, len);
+    }
+
+
+    private static Object toInteger(char[] buf, int off, int len) {
+	Long v = parseLong(buf, off, len);
+	if(v == null || v.longValue() < Integer.MIN_VALUE || v.longValue() > Integer.MAX_VALUE) {
+	    return null;
+	}
+	return Integer.valueOf(v.intValue());
+    }
+
+
+    /**
+     *  Plain decimals go thru NumberSniffer's fast path; anything else
+     *  (exponents, leading zeroes, NaN...) thru Double.valueOf().
+     */
+    private static Object toDouble(char[] buf, int off, int len) {
+	int b = start(buf, off, off + len);
+	int e = end(buf, b, off + len);
+
+	Object v = NumberSniffer.sniff(buf, b, e - b, false);
+	if(v != null) {
+	    return Double.valueOf(((Number)v).doubleValue());
+	}
+	try {
+	    return Double.valueOf(new String(buf, b, e - b));
+	} catch(NumberFormatException ex) {
+	    return null;
+	}
+    }
+
+
+    private static Object toBigDecimal(char[] buf, int off, int len) {
+	int b = start(buf, off, off + len);
+	int e = end(buf, b, off + len);
+	try {
+	    return new BigDecimal(buf, b, e - b);
+	} catch(NumberFormatException ex) {
+	    return null;
+	}
+    }
+
+
+    /**
+     *  xs:boolean, i.e. true, false, 1 or 0.
+     */
+    private static Object toBoolean(char[] buf, int off, int len) {
+	int lim = off + len;
+	off = start(buf, off, lim);
+	int n = end(buf, off, lim) - off;
+
+	if(n == 1) {
+	    if(buf[off] == '1') {
+		return Boolean.TRUE;
+	    }
+	    if(buf[off] == '0') {
+		return Boolean.FALSE;
+	    }
+	} else if(n == 4 && buf[off] == 't' && buf[off+1] == 'r' && buf[off+2] == 'u' && buf[off+3] == 'e') {
+	    return Boolean.TRUE;
+	} else if(n == 5 && buf[off] == 'f' && buf[off+1] == 'a' && buf[off+2] == 'l' && buf[off+3] == 's' && buf[off+4] == 'e') {
+	    return Boolean.FALSE;
+	}
+	return null;
+    }
+
+}
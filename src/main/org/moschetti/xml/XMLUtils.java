@@ -6,16 +6,35 @@ package org.moschetti.xml;
 import javax.xml.parsers.SAXParserFactory; 
 import javax.xml.parsers.SAXParser;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
 import org.xml.sax.Locator;
 import org.xml.sax.helpers.LocatorImpl;
+import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 
+import java.nio.file.Path;
+
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.ArrayList;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+import java.util.concurrent.ForkJoinPool;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.BooleanSupplier;
+
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *  Primary to/from XML mapper.
@@ -35,7 +54,7 @@ public class XMLUtils {
      *  ParseOptions object and just set 1 or 2 items to true for
      *  convenience.
      */
-    public static class ParseOptions {
+    public static class ParseOptions implements Cloneable {
 
 	/**
 	 *  If storeBlanks is true, HashHandler will store maps of blank strings when
@@ -64,10 +83,34 @@ public class XMLUtils {
 
 	/**
 	 *  If true, data that sniffs like a date will be converted into
-	 *  a java.util.Date
+	 *  a java.util.Date, or java.time objects; see dateType.
 	 */
 	public boolean convertDates;
 
+	/**
+	 *  (Only applies when convertDates is true)  One of:
+	 *  <ul>
+	 *  <li>DATES_AS_UTIL_DATE (default): java.util.Date, as always
+	 *      (but see the +hh:mm warning on DATES_AS_UTIL_DATE)
+	 *  <li>DATES_AS_JAVA_TIME: LocalDate for YYYY-MM-DD, LocalDateTime
+	 *      when no zone is given, Instant for a trailing Z, and
+	 *      OffsetDateTime for +hh:mm
+	 *  </ul>
+	 */
+	public int dateType;
+
+	/**
+	 *  Beware: for text with a +hh:mm / -hh:mm offset this mode has
+	 *  always applied the offset with the wrong sign, and still does
+	 *  so existing data keeps its values:  2020-01-01T00:00:00+05:00
+	 *  comes out as 2020-01-01T05:00:00Z, not 2019-12-31T19:00:00Z.
+	 *  DATES_AS_JAVA_TIME gets it right, so switching modes moves
+	 *  every offset instant by twice its offset.   Text ending in Z,
+	 *  or with no zone at all, means the same thing in both.
+	 */
+	public static final int DATES_AS_UTIL_DATE = 0;
+	public static final int DATES_AS_JAVA_TIME = 1;
+
 	/**
 	 *  (Only applies when convertNumbers is true) If true, data that
 	 *  sniffs like a float will be converted into java.math.BigDecimal
@@ -82,6 +125,32 @@ public class XMLUtils {
 	 */
 	public String attributePrefix;
 
+	/**
+	 *  How the <tt>__attributes_</tt> maps are stored.  One of:
+	 *  <ul>
+	 *  <li>ATTRIBUTES_AS_HASHMAP (default): a HashMap per element
+	 *  <li>ATTRIBUTES_COMPACT: an immutable AttributeMap, built
+	 *      straight from the parser with one exactly sized array;
+	 *      much cheaper for attribute-heavy documents
+	 *  <li>ATTRIBUTES_DROP: ignore attributes altogether
+	 *  </ul>
+	 */
+	public int attributeStorage;
+
+	public static final int ATTRIBUTES_AS_HASHMAP = 0;
+	public static final int ATTRIBUTES_COMPACT = 1;
+	public static final int ATTRIBUTES_DROP = 2;
+
+	/**
+	 *  If true, <i>name</i>_LIST wrappers (see Map2XML and
+	 *  deListify()) are collapsed while parsing instead of with a
+	 *  separate deListify() call afterwards; the result is the
+	 *  same, without the second trip thru the whole tree.  Records
+	 *  (parseRecords etc.) come out as if each had been passed to
+	 *  deListify().  Not used by parseToTape().
+	 */
+	public boolean deListify;
+
 	/**
 	 *  If set, a field so named will be created in the root map
 	 *  containing the runtime of the of the parse in nanoseconds.
@@ -95,6 +164,178 @@ public class XMLUtils {
 	 */
 	public String namespaceField;
 
+	/**
+	 *  If set, every element Map in the output is made by this
+	 *  instead of the mapType Class handed to parseXML().  CompactMap::new is a
+	 *  good choice for big documents full of small leaf maps: it
+	 *  keeps insertion order like LinkedHashMap at a fraction of the
+	 *  footprint.
+	 */
+	public Supplier<Map<String,Object>> mapFactory;
+
+	/**
+	 *  If true, tag and attribute names (and the derived
+	 *  __attributes_ keys) are canonicalized thru a SymbolTable so
+	 *  that repeated names share a single String instance.
+	 */
+	public boolean internNames;
+
+	/**
+	 *  If set, this (thread safe) SymbolTable is used for name
+	 *  canonicalization instead of a private one per parse, so
+	 *  names are shared across parses too.  Implies internNames.
+	 */
+	public SymbolTable symbolTable;
+
+	/**
+	 *  If &gt; 0, short leaf values are deduplicated thru a bounded
+	 *  cache of about this many slots (1024 is a good start), so a
+	 *  status code or currency that appears a million times is ONE
+	 *  String (or Integer, etc.) in the output.  Lookups are done on
+	 *  the raw chars, so a hit allocates nothing.  0 means off.
+	 *  Values are shared, so don't mutate them... well, you can't:
+	 *  they are all immutable.  (java.util.Date is never cached.)
+	 */
+	public int valueDedupCache;
+
+	/**
+	 *  (Only applies when convertNumbers and/or convertDates is true)
+	 *  If true, leaves are stored as raw text and the number / date
+	 *  rules are only run the first time a value is read from its
+	 *  Map or List (then remembered).  Great when consumers only
+	 *  look at a few fields of each record.  The maps look and act
+	 *  like normal maps but reads write back the converted value,
+	 *  so they are not safe for concurrent reads.
+	 */
+	public boolean lazyConversion;
+
+	/**
+	 *  Projection: see include() / exclude().  Leave null to build
+	 *  everything.
+	 */
+	public List<String> includePaths;
+	public List<String> excludePaths;
+
+	/**
+	 *  If true and there are includePaths, stop reading the document
+	 *  as soon as one of each include path has been read.
+	 */
+	public boolean stopWhenIncludesSeen;
+
+
+	/**
+	 *  If set (and convertNumbers and/or convertDates is on), paths
+	 *  whose values never turn out to be numbers or dates stop
+	 *  being sniffed.  See SniffProfile.  Share one across parses so
+	 *  it can learn.
+	 */
+	public SniffProfile sniffProfile;
+
+
+	/**
+	 *  Path to type, see typeHint().
+	 */
+	public Map<String,Object> typeHints;
+
+
+	/**
+	 *  Declare the type of the leaf value at an absolute path so it is
+	 *  converted directly instead of sniffed (and possibly guessed
+	 *  wrong, e.g. "00123" as a number).  type is a ValueConverter or
+	 *  one of String, Integer, Long, Double, BigDecimal, Boolean (or
+	 *  int.class etc.), java.util.Date, or java.time.temporal.Temporal
+	 *  (the convertDates formats as java.time objects).  Text that
+	 *  does not fit the type is left as a String.  Returns this for
+	 *  chaining.
+	 */
+	public ParseOptions typeHint(String path, Object type) {
+	    HashHandler.splitPath(path);
+	    if(!ValueConverters.supported(type)) {
+		throw new IllegalArgumentException("unsupported type hint: " + type);
+	    }
+	    Map<String,Object> m = (typeHints == null) ? new HashMap<String,Object>() : new HashMap<String,Object>(typeHints);
+	    m.put(path, type);
+	    typeHints = m;
+	    return this;
+	}
+
+
+	/**
+	 *  Only build the elements at (and under) these absolute paths,
+	 *  e.g. <tt>include("/Envelope/Header/To", "/Envelope/Header/Action")</tt>.
+	 *  Elements on the way down to an include path are kept too, as
+	 *  are their attributes; everything else is skipped without
+	 *  building any maps or text for it.  Returns this for chaining.
+	 */
+	public ParseOptions include(String... paths) {
+	    includePaths = appendPaths(includePaths, paths);
+	    return this;
+	}
+
+	/**
+	 *  Skip the elements at these absolute paths and everything under
+	 *  them.  Wins over include().  Returns this for chaining.
+	 */
+	public ParseOptions exclude(String... paths) {
+	    excludePaths = appendPaths(excludePaths, paths);
+	    return this;
+	}
+
+	/**
+	 *  Always a new List so that copies made with copy() are not
+	 *  changed behind their backs.
+	 */
+	private static List<String> appendPaths(List<String> old, String[] paths) {
+	    List<String> l = (old == null) ? new ArrayList<String>() : new ArrayList<String>(old);
+	    for(String p : paths) {
+		HashHandler.splitPath(p); // check it now, not at parse time
+		l.add(p);
+	    }
+	    return l;
+	}
+
+
+	/**
+	 *  Copy for freezing a set of options, e.g. in XmlParserTemplate.
+	 *  includePaths, excludePaths and typeHints are copied too, so
+	 *  changing them afterwards on either side does not reach the
+	 *  other.  symbolTable and sniffProfile are shared on purpose
+	 *  (they are thread safe and are meant to be shared).
+	 */
+	public ParseOptions copy() {
+	    ParseOptions o;
+	    try {
+		o = (ParseOptions) super.clone();
+	    } catch(CloneNotSupportedException e) {
+		throw new IllegalStateException(e); // cannot happen
+	    }
+	    if(includePaths != null) {
+		o.includePaths = new ArrayList<String>(includePaths);
+	    }
+	    if(excludePaths != null) {
+		o.excludePaths = new ArrayList<String>(excludePaths);
+	    }
+	    if(typeHints != null) {
+		o.typeHints = new HashMap<String,Object>(typeHints);
+	    }
+	    return o;
+	}
+    }
+
+
+    /**
+     *  One entry of XmlParserTemplate.parseAll(): the Map, or the reason
+     *  there isn't one.
+     *  index is the position of the input in the Iterable.
+     */
+    public static class ParseResult {
+	public int index;
+	public Map<String,Object> map;
+	public Exception error;
+
+	public boolean isOK() {
+	    return error == null;
+	}
     }
 
 
@@ -106,9 +347,21 @@ public class XMLUtils {
 
 
 
+    /**
+     *  Same deal for the pull (StAX) side.  Once configured, creating
+     *  readers from the factory is thread safe.
+     */
+    private static final XMLInputFactory staxfactory;
+
+
+
     static {
 	saxfactory = SAXParserFactory.newInstance();
 	saxfactory.setNamespaceAware(true);
+
+	staxfactory = XMLInputFactory.newInstance();
+	staxfactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+	staxfactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
     }
 
 
@@ -152,53 +405,383 @@ public class XMLUtils {
     public static Map<String,Object> parseXML(InputStream is, Class mapType, ParseOptions options)
 	throws XMLParsingException
     {
-	Map<String,Object> data = null;
+	return parseDocument(null, is, makeHandler(mapType, options), options);
+    }
 
-	Locator locator = new LocatorImpl();
 
+    /**
+     *  Parse a file straight out of memory-mapped pages (files over 2GB
+     *  are fine).  Cheaper than handing a FileInputStream to
+     *  parseXML(InputStream) since the parser reads directly from the
+     *  mapping with no stream buffering in between, and great for
+     *  files that get parsed over and over from the OS page cache.
+     */
+    public static Map<String,Object> parseXML(Path path)
+	throws XMLParsingException
+    {
+	return parseXML(path, HashMap.class, new ParseOptions());
+    }
+
+    public static Map<String,Object> parseXML(Path path, ParseOptions options)
+	throws XMLParsingException
+    {
+	return parseXML(path, HashMap.class, options);
+    }
+
+    public static Map<String,Object> parseXML(Path path, Class mapType, ParseOptions options)
+	throws XMLParsingException
+    {
+	ByteSource src = mapFile(path);
+	return parseXML(src.stream(0, src.length()), mapType, options);
+    }
+
+
+    /**
+     *  Parse one big in-memory document on many cores.  recordPath
+     *  (e.g. <tt>/data/item</tt>) names the element that repeats; the
+     *  document is split between records and the pieces are parsed
+     *  concurrently on the common ForkJoinPool, then stitched back
+     *  together.  The output is the same as parseXML(); only faster
+     *  when there are lots of records.   Documents that cannot be split
+     *  safely (DOCTYPE, UTF-16) are quietly parsed sequentially.
+     */
+    public static Map<String,Object> parseXMLParallel(byte[] data, String recordPath, ParseOptions options)
+	throws XMLParsingException
+    {
+	return parseXMLParallel(data, recordPath, HashMap.class, options, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     *  Same as above but declare the kind of concrete imp of Map you
+     *  want and the pool to run on.
+     */
+    public static Map<String,Object> parseXMLParallel(byte[] data, String recordPath, Class mapType, ParseOptions options, ForkJoinPool pool)
+	throws XMLParsingException
+    {
+	return ParallelParser.parse(ByteSource.of(data), recordPath, mapType, options, pool);
+    }
+
+
+    /**
+     *  parseXMLParallel() over a memory-mapped file; files over 2GB are
+     *  fine.
+     */
+    public static Map<String,Object> parseXMLParallel(Path path, String recordPath, ParseOptions options)
+	throws XMLParsingException
+    {
+	return parseXMLParallel(path, recordPath, HashMap.class, options, ForkJoinPool.commonPool());
+    }
+
+    public static Map<String,Object> parseXMLParallel(Path path, String recordPath, Class mapType, ParseOptions options, ForkJoinPool pool)
+	throws XMLParsingException
+    {
+	return ParallelParser.parse(mapFile(path), recordPath, mapType, options, pool);
+    }
+
+
+    private static ByteSource mapFile(Path path)
+	throws XMLParsingException
+    {
 	try {
-	    SAXParser saxParser = saxfactory.newSAXParser();
+	    return new MappedByteSource(path);
+	} catch(IOException e) {
+	    throw new XMLParsingException("cannot map " + path + ": " + e);
+	}
+    }
 
-	    HashHandler hx = new HashHandler(options.storeBlanks, mapType);
 
-	    hx.setDocumentLocator(locator);
+    /**
+     *  Parse into a TapeDocument instead of a Map of Maps.  The document
+     *  is held off-heap and getRootMap() hands back a read-only view
+     *  that builds Maps only as they are looked at, so very large
+     *  documents can be kept around and queried without the heap cost
+     *  (and GC pauses) of the full tree.  Same options and same output
+     *  shape as parseXML(), with these exceptions:  mapFactory,
+     *  valueDedupCache, lazyConversion and deListify do not apply
+     *  (values are always converted on first look), the Maps are
+     *  always in document order and attributes are always
+     *  AttributeMaps.
+     */
+    public static TapeDocument parseToTape(InputStream is, ParseOptions options)
+	throws XMLParsingException
+    {
+	return TapeDocument.parse(null, is, options);
+    }
 
-	    if(options.attributePrefix != null) {
-		hx.setAttributePrefix(options.attributePrefix);
-	    }
-	    if(options.namespaceField != null) {
-		hx.emitNamespace(options.namespaceField);
-	    }
+    public static TapeDocument parseToTape(Path path, ParseOptions options)
+	throws XMLParsingException
+    {
+	ByteSource src = mapFile(path);
+	return parseToTape(src.stream(0, src.length()), options);
+    }
 
-	    hx.convertNumbers(options.convertNumbers);
-	    hx.convertDates(options.convertDates);
-	    hx.useBigDecimal(options.useBigDecimal);
 
-	    long startTime = 0;
-	    long endTime = 0;
+    /**
+     *  Record-streaming parse.  Instead of building the whole document
+     *  and handing back one giant root map, every element found at
+     *  recordPath (e.g. <tt>/data/item</tt>) is built with the usual
+     *  HashHandler rules, handed to the consumer, and then dropped.
+     *  Each record arrives looking like a standalone parse of that
+     *  element:
+     *  <pre>
+     *     { item: {...}, __attributes_item: {...} }
+     *  </pre>
+     *  Memory use is therefore bounded by the size of the largest record,
+     *  not the size of the file.   parseTimeInNanosField is ignored here.
+     *  Anything thrown by the consumer aborts the parse and surfaces as
+     *  an XMLParsingException.
+     */
+    public static void parseRecords(InputStream is, String recordPath, ParseOptions options, Consumer<Map<String,Object>> consumer)
+	throws XMLParsingException
+    {
+	parseRecords(is, recordPath, HashMap.class, options, consumer);
+    }
 
-	    if(options.parseTimeInNanosField != null) {
-		startTime = System.nanoTime();
-	    }
-	    saxParser.parse(is, hx); // The Juice!
-	    if(options.parseTimeInNanosField != null) {
-		endTime = System.nanoTime();
-	    }
 
-	    //System.out.println("namespaces:");
-	    //m = hx.getNamespaces();
-	    //showMap(m, 0, showAttrs);
+    /**
+     *  Same as above but declare the kind of concrete imp of Map you want
+     *  for each record.
+     */
+    public static void parseRecords(InputStream is, String recordPath, Class mapType, ParseOptions options, Consumer<Map<String,Object>> consumer)
+	throws XMLParsingException
+    {
+	HashHandler hx = makeHandler(mapType, options);
+
+	hx.setRecordHandler(recordPath, consumer);
+
+	runParse(null, is, hx);
+    }
+
+
+    /**
+     *  Pull-based cousin of parseRecords().  Nothing is parsed until
+     *  hasNext() is called, and then only far enough to complete the
+     *  next record.  close() it (or use try-with-resources) when
+     *  abandoning the walk early.
+     */
+    public static RecordIterator recordIterator(InputStream is, String recordPath, ParseOptions options)
+	throws XMLParsingException
+    {
+	return recordIterator(is, recordPath, HashMap.class, options);
+    }
+
+
+    public static RecordIterator recordIterator(InputStream is, String recordPath, Class mapType, ParseOptions options)
+	throws XMLParsingException
+    {
+	XMLStreamReader reader = null;
+
+	try {
+	    reader = staxfactory.createXMLStreamReader(is);
+	} catch(Exception e) {
+	    throw new XMLParsingException("cannot open stream: " + e);
+	}
+
+	return new RecordIterator(reader, makeHandler(mapType, options), recordPath);
+    }
+
+
+    /**
+     *  Lazy Stream of records over recordIterator().  limit(), filter(),
+     *  findFirst() etc. stop pulling from the document as soon as they
+     *  have what they need; close the Stream to release the reader.
+     *  Parse failures surface as UncheckedXMLParsingException.
+     *  <pre>
+     *  try(Stream&lt;Map&lt;String,Object&gt;&gt; s = XMLUtils.streamRecords(is, "/data/item", opts)) {
+     *      s.filter(...).limit(10).forEach(...);
+     *  }
+     *  </pre>
+     */
+    public static Stream<Map<String,Object>> streamRecords(InputStream is, String recordPath, ParseOptions options)
+	throws XMLParsingException
+    {
+	return streamRecords(is, recordPath, HashMap.class, options);
+    }
+
+
+    public static Stream<Map<String,Object>> streamRecords(InputStream is, String recordPath, Class mapType, ParseOptions options)
+	throws XMLParsingException
+    {
+	RecordIterator ri = recordIterator(is, recordPath, mapType, options);
+
+	Spliterator<Map<String,Object>> sp = Spliterators.spliteratorUnknownSize(ri, Spliterator.ORDERED | Spliterator.NONNULL);
+
+	return StreamSupport.stream(sp, false).onClose(ri::close);
+    }
+
+
+    /**
+     *  Push-style whole-document parse: feed() the bytes as they arrive,
+     *  then endOfInput() returns what parseXML() would have.  No thread
+     *  is tied up waiting on the input.  See FeedParser.
+     */
+    public static FeedParser feedParser(ParseOptions options)
+	throws XMLParsingException
+    {
+	return new FeedParser(null, HashMap.class, options, null);
+    }
+
+    public static FeedParser feedParser(Class mapType, ParseOptions options)
+	throws XMLParsingException
+    {
+	return new FeedParser(null, mapType, options, null);
+    }
+
+
+    /**
+     *  Push-style parseRecords():  records are handed to the consumer
+     *  from inside feed() as soon as they are complete.
+     */
+    public static FeedParser feedParser(String recordPath, ParseOptions options, Consumer<Map<String,Object>> consumer)
+	throws XMLParsingException
+    {
+	return new FeedParser(recordPath, HashMap.class, options, consumer);
+    }
+
+    public static FeedParser feedParser(String recordPath, Class mapType, ParseOptions options, Consumer<Map<String,Object>> consumer)
+	throws XMLParsingException
+    {
+	return new FeedParser(recordPath, mapType, options, consumer);
+    }
+
+
+    /**
+     *  Set up a fresh HashHandler according to options.
+     */
+    static HashHandler makeHandler(Class mapType, ParseOptions options)
+    {
+	HashHandler hx = null;
+
+	if(options.mapFactory != null) {
+	    hx = new HashHandler(options.storeBlanks, options.mapFactory);
+	} else {
+	    hx = new HashHandler(options.storeBlanks, mapType);
+	}
+
+	if(options.attributePrefix != null) {
+	    hx.setAttributePrefix(options.attributePrefix);
+	}
+	if(options.namespaceField != null) {
+	    hx.emitNamespace(options.namespaceField);
+	}
+
+	hx.convertNumbers(options.convertNumbers);
+	hx.convertDates(options.convertDates);
+	hx.useBigDecimal(options.useBigDecimal);
+
+	if(options.dateType == ParseOptions.DATES_AS_JAVA_TIME) {
+	    hx.useJavaTime(true);
+	}
+
+	hx.setLazyConversion(options.lazyConversion);
+
+	if(options.deListify) {
+	    hx.deListify(true);
+	}
+
+	if(options.attributeStorage == ParseOptions.ATTRIBUTES_COMPACT) {
+	    hx.compactAttributes(true);
+	} else if(options.attributeStorage == ParseOptions.ATTRIBUTES_DROP) {
+	    hx.dropAttributes(true);
+	}
+
+	if(options.valueDedupCache > 0) {
+	    hx.setValueDedupCache(options.valueDedupCache);
+	}
+
+	if(options.symbolTable != null) {
+	    hx.setSymbolTable(options.symbolTable);
+	} else if(options.internNames) {
+	    hx.setSymbolTable(new SymbolTable(SymbolTable.DEFAULT_MAX_SIZE, false));
+	}
+
+	if(options.sniffProfile != null && (options.convertNumbers || options.convertDates)) {
+	    hx.setSniffProfile(options.sniffProfile);
+	}
+
+	if(options.typeHints != null) {
+	    hx.setTypeHints(options.typeHints);
+	}
+
+	if(options.includePaths != null || options.excludePaths != null) {
+	    hx.setProjection(options.includePaths, options.excludePaths, options.stopWhenIncludesSeen);
+	}
+
+	return hx;
+    }
+
+
+    /**
+     *  Whole-document parse thru hx, honoring parseTimeInNanosField.
+     *  saxParser may be null, in which case a new one is made.
+     */
+    static Map<String,Object> parseDocument(SAXParser saxParser, InputStream is, HashHandler hx, ParseOptions options)
+	throws XMLParsingException
+    {
+	Map<String,Object> data = null;
 
-	    //System.out.println("data:");	    
+	long startTime = 0;
+	long endTime = 0;
 
-	    data = hx.getRootMap();
+	if(options.parseTimeInNanosField != null) {
+	    startTime = System.nanoTime();
+	}
+	runParse(saxParser, is, hx); // The Juice!
+	if(options.parseTimeInNanosField != null) {
+	    endTime = System.nanoTime();
+	}
+
+	//System.out.println("namespaces:");
+	//m = hx.getNamespaces();
+	//showMap(m, 0, showAttrs);
+
+	data = hx.getRootMap();
+
+	if(options.parseTimeInNanosField != null) {
+	    long nanos = (endTime - startTime);
+	    data.put(options.parseTimeInNanosField, nanos);
+	}
+
+	return data;
+    }
+
+
+    /**
+     *  Drive the stream thru hx; all failures come back as
+     *  XMLParsingException.  saxParser may be null, in which case a new
+     *  one is made.
+     */
+    static void runParse(SAXParser saxParser, InputStream is, HashHandler hx)
+	throws XMLParsingException
+    {
+	runParse(saxParser, is, hx, hx::stoppedEarly);
+    }
+
+
+    /**
+     *  Same for any handler; stoppedEarly says whether a failure is
+     *  really the handler quitting on purpose.
+     */
+    static void runParse(SAXParser saxParser, InputStream is, DefaultHandler hx, BooleanSupplier stoppedEarly)
+	throws XMLParsingException
+    {
+	Locator locator = new LocatorImpl();
 
-	    if(options.parseTimeInNanosField != null) {
-		long nanos = (endTime - startTime);
-		data.put(options.parseTimeInNanosField, nanos);
+	try {
+	    if(saxParser == null) {
+		saxParser = saxfactory.newSAXParser();
 	    }
 
+	    hx.setDocumentLocator(locator);
+
+	    saxParser.parse(is, hx);
+
 	} catch(Exception e) {
+	    if(stoppedEarly.getAsBoolean()) {
+		return; // not a failure; we have everything we wanted
+	    }
+
 	    int cn = locator.getColumnNumber();
 	    int ln = locator.getLineNumber();
 
@@ -207,8 +790,17 @@ public class XMLUtils {
 	    //throw new XMLParsingException("cannot parse stream: " + e);
 	    throw new XMLParsingException(msg);
 	}
+    }
 
-	return data;
+
+    static SAXParser newSAXParser()
+	throws XMLParsingException
+    {
+	try {
+	    return saxfactory.newSAXParser();
+	} catch(Exception e) {
+	    throw new XMLParsingException("cannot create parser: " + e);
+	}
     }
 
 
@@ -310,84 +902,27 @@ public class XMLUtils {
      *        b: java.lang.String: v4
      *  
      *  </pre>
+     *  To have this done during the parse instead, set
+     *  ParseOptions.deListify.
      */
     public static void deListify(Map<String,Object> xmap)
     {
-	walkMap(xmap);
+	DeListifier.walk(xmap);
     }
 
 
-    private static void walkMap(Map<String,Object> m)
+    /**
+     *  Same result as deListify(), but big Lists (thousands of records)
+     *  are split up and walked concurrently on the common ForkJoinPool.
+     */
+    public static void deListifyParallel(Map<String,Object> xmap)
     {
-	/**
-	 *  Need to use String[] here, not iterator, because we will be
-	 *  inserting and deleting from the Map.   We need a start of
-	 *  function "point in time" capture of the keyset, not an
-	 *  iteration thru it....
-	 */
-	Object[] keys = m.keySet().toArray(); // handy!
-	
-	int max = keys.length;
-	//java.util.Iterator<String> ii = m.keySet().iterator();
-
-	for(int idx = 0; idx < max; idx++) {
-
-	    String key = (String) keys[idx];
-	    Object ov = m.get(key);
-
-	    if(ov != null) {
-
-		if(ov instanceof Map) {
-		    if(key.endsWith("_LIST")) {
-
-			//System.out.println("target " + key);
-
-			Map sub = (Map)ov; // dip in
-
-			if(sub != null && sub.size() == 1) {
-
-			    //  If key was claims_LIST, then
-			    //  z is claims
-
-			    int zn = key.indexOf("_LIST");
-			    String z = key.substring(0, zn);
-			    
-			    Object ov2 = sub.get(z);
-
-			    if(ov2 != null && ov2 instanceof List) {
-				m.put(z, ov2);
-				m.remove(key);
-				//System.out.println("promote " + key + " to " + z);
-			    }
-			}
-
-		    } else {
-			walkMap((Map)ov);
-		    }
-
-		} else if(ov instanceof List) {
-		    walkList((List)ov);
-		}
-	    }
-	}
+	deListifyParallel(xmap, ForkJoinPool.commonPool());
     }
 
-
-    private static void walkList(List l)
+    public static void deListifyParallel(Map<String,Object> xmap, ForkJoinPool pool)
     {
-	for(int jj = 0; jj < l.size(); jj++) {
-	    Object ov = l.get(jj);
-	    
-	    if(ov != null) {
-		if(ov instanceof Map) {
-		    walkMap((Map)ov);
-		} else if(ov instanceof List) {
-		    walkList((List)ov);
-		} else {
-		    // No need to worry about scalars (for once...!)
-		}
-	    }
-	}
+	DeListifier.walk(xmap, pool);
     }
 
 }
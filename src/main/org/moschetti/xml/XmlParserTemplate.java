@@ -0,0 +1,262 @@
+package org.moschetti.xml;
+
+import javax.xml.parsers.SAXParser;
+
+import java.io.InputStream;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ *  Build once, parse many.  XMLUtils.parseXML() makes a new SAXParser
+ *  and a new HashHandler (with all its buffers) for every document,
+ *  which is noise for big documents but a real cost when slamming
+ *  through lots of small ones.   A template freezes a copy of the
+ *  ParseOptions and keeps a pool of parser + handler pairs which are
+ *  reset() and reused, so steady-state parsing does almost no setup
+ *  allocation.
+ *  <pre>
+ *  // once, e.g. in a static:
+ *  XmlParserTemplate tpl = new XmlParserTemplate(LinkedHashMap.class, opts);
+ *
+ *  // from any thread, any number of times:
+ *  Map&lt;String,Object&gt; m = tpl.parse(is);
+ *  </pre>
+ *  The template is immutable and thread safe.   Changing the
+ *  ParseOptions object (including its path lists and type hints)
+ *  after constructing the template has no effect; only a symbolTable
+ *  or sniffProfile in it stays shared, as those are meant to be.
+ */
+public class XmlParserTemplate {
+
+    /**
+     *  Enough to cover the usual thread pool without hoarding.
+     */
+    private static final int DEFAULT_MAX_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final Class mapType;
+    private final XMLUtils.ParseOptions options;
+    private final int maxPooled;
+
+    private final ConcurrentLinkedQueue<Worker> pool = new ConcurrentLinkedQueue<Worker>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+
+    private static class Worker {
+	SAXParser parser;
+	HashHandler hx;
+    }
+
+
+    public XmlParserTemplate(XMLUtils.ParseOptions options) {
+	this(HashMap.class, options, DEFAULT_MAX_POOLED);
+    }
+
+    public XmlParserTemplate(Class mapType, XMLUtils.ParseOptions options) {
+	this(mapType, options, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     *  maxPooled is the most idle parser + handler pairs kept around.
+     *  Concurrency is not limited by it; extra pairs are simply created
+     *  and dropped when the pool is full.
+     */
+    public XmlParserTemplate(Class mapType, XMLUtils.ParseOptions options, int maxPooled) {
+	this.mapType = mapType;
+	this.options = (options == null) ? new XMLUtils.ParseOptions() : options.copy();
+	this.maxPooled = maxPooled;
+    }
+
+
+    /**
+     *  Same as XMLUtils.parseXML(is, mapType, options).
+     */
+    public Map<String,Object> parse(InputStream is)
+	throws XMLParsingException
+    {
+	Worker w = acquire();
+	try {
+	    return XMLUtils.parseDocument(w.parser, is, w.hx, options);
+	} finally {
+	    release(w);
+	}
+    }
+
+
+    /**
+     *  Same as XMLUtils.parseRecords(is, recordPath, mapType, options, consumer).
+     *  It is fine for the consumer to call back into this template; it
+     *  will simply get another pooled pair.
+     */
+    public void parseRecords(InputStream is, String recordPath, Consumer<Map<String,Object>> consumer)
+	throws XMLParsingException
+    {
+	Worker w = acquire();
+	try {
+	    w.hx.setRecordHandler(recordPath, consumer);
+	    XMLUtils.runParse(w.parser, is, w.hx);
+	} finally {
+	    w.hx.setRecordHandler(null, null);
+	    release(w);
+	}
+    }
+
+
+    /**
+     *  Parse a batch of independent documents concurrently, at most
+     *  maxConcurrency at a time, on virtual threads if the JDK has them
+     *  or else on a temporary pool of maxConcurrency threads.  Each
+     *  Supplier is asked for its stream just before it is parsed, and
+     *  the stream is closed after.   Results come back in input order;
+     *  a failure (bad XML, a Supplier or stream throwing) is recorded in
+     *  its ParseResult and does not stop the rest.
+     *
+     *  Parser + handler pairs come out of (and go back to) this
+     *  template's pool, so keep the template around and call this again
+     *  for the next batch; there is deliberately no static
+     *  XMLUtils.parseAll(), which would have to build all of that every
+     *  time.  To reuse threads too, pass your own Executor.
+     */
+    public List<XMLUtils.ParseResult> parseAll(Iterable<Supplier<InputStream>> inputs, int maxConcurrency)
+	throws XMLParsingException
+    {
+	ExecutorService ex = newExecutor(maxConcurrency);
+	try {
+	    return parseAll(inputs, maxConcurrency, ex);
+	} finally {
+	    ex.shutdown();
+	}
+    }
+
+
+    /**
+     *  Same on an Executor of your choosing, which is left running.
+     *  maxConcurrency still limits how many parses are in flight.
+     */
+    public List<XMLUtils.ParseResult> parseAll(Iterable<Supplier<InputStream>> inputs, int maxConcurrency, Executor executor)
+	throws XMLParsingException
+    {
+	if(maxConcurrency < 1) {
+	    throw new IllegalArgumentException("maxConcurrency must be at least 1");
+	}
+
+	final Semaphore slots = new Semaphore(maxConcurrency);
+	List<XMLUtils.ParseResult> results = new ArrayList<XMLUtils.ParseResult>();
+
+	try {
+	    for(final Supplier<InputStream> in : inputs) {
+		final XMLUtils.ParseResult r = new XMLUtils.ParseResult();
+		r.index = results.size();
+		results.add(r);
+
+		slots.acquire();
+		try {
+		    executor.execute(() -> {
+			    try {
+				r.map = parseOne(in);
+			    } catch(Exception e) {
+				r.error = e;
+			    } finally {
+				slots.release();
+			    }
+			});
+		} catch(RejectedExecutionException e) {
+		    r.error = e;
+		    slots.release();
+		}
+	    }
+
+	    // Wait for the stragglers; this also makes their results
+	    // visible here.
+	    slots.acquire(maxConcurrency);
+	    slots.release(maxConcurrency);
+
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new XMLParsingException("interrupted during parseAll");
+	}
+
+	return results;
+    }
+
+
+    private Map<String,Object> parseOne(Supplier<InputStream> in)
+	throws Exception
+    {
+	try(InputStream is = in.get()) {
+	    return parse(is);
+	}
+    }
+
+
+    /**
+     *  Executors.newVirtualThreadPerTaskExecutor() when running on a JDK
+     *  that has it (looked up by reflection so we still build and run
+     *  on older ones).
+     */
+    private static ExecutorService newExecutor(int threads) {
+	try {
+	    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	} catch(Exception e) {
+	    return Executors.newFixedThreadPool(threads, r -> {
+		    Thread t = new Thread(r, "xmlutils-parseAll");
+		    t.setDaemon(true);
+		    return t;
+		});
+	}
+    }
+
+
+    /**
+     *  The frozen options; handy for building a variation.  Returns a
+     *  copy so the template stays immutable.
+     */
+    public XMLUtils.ParseOptions getOptions() {
+	return options.copy();
+    }
+
+
+    private Worker acquire()
+	throws XMLParsingException
+    {
+	Worker w = pool.poll();
+
+	if(w == null) {
+	    w = new Worker();
+	    w.parser = XMLUtils.newSAXParser();
+	    w.hx = XMLUtils.makeHandler(mapType, options);
+	} else {
+	    pooled.decrementAndGet(); // already reset() by release()
+	}
+	return w;
+    }
+
+
+    private void release(Worker w) {
+	// Drop whatever the last document left behind so the pool
+	// doesn't pin big maps in memory between calls:
+	w.hx.reset();
+	w.parser.reset();
+
+	if(pooled.incrementAndGet() <= maxPooled) {
+	    pool.offer(w);
+	} else {
+	    pooled.decrementAndGet();
+	}
+    }
+
+}
@@ -0,0 +1,483 @@
+package org.moschetti.xml;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.RandomAccess;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *  The engine behind Map2XML.   Output goes into a byte buffer of our
+ *  own, encoded as UTF-8 by hand, and reaches the OutputStream only
+ *  when the buffer is full (or on flush()).   The bytes of each tag
+ *  (open, close, name_LIST open and close) are made once per key and
+ *  kept, as are the indent bytes of each level.
+ *
+ *  The walk uses an explicit stack of Frames, one per open Map or List,
+ *  so depth is limited by the heap and not the thread stack.   Frames
+ *  are reused across calls.
+ *
+ *  A (RandomAccess) List longer than the parallel threshold is cut into
+ *  CHUNK element pieces that are serialized by their own XmlWriters on
+ *  a ForkJoinPool, each into a byte array.   The arrays are copied out
+ *  in List order, so the output is the same byte for byte; at most a
+ *  couple of pieces per pool thread are in memory at any time.
+ *
+ *  Not thread safe; one per output.
+ */
+final class XmlWriter {
+
+    static final int BUFFER = 8192;
+
+    private static final byte[] INDENT = { ' ', ' ' };
+
+    /**
+     *  Indents are cached up to this many levels; deeper ones are
+     *  written in pieces.
+     */
+    private static final int INDENTS = 64;
+
+    /**
+     *  Elements per piece of a List serialized in parallel.
+     */
+    static final int CHUNK = 2048;
+
+    private final OutputStream os;
+    private final byte[] buf;
+    private int pos;
+
+    private final HashMap<String,Tag> tags = new HashMap<String,Tag>();
+    private final ArrayList<byte[]> indents = new ArrayList<byte[]>();
+
+    private Frame[] stack = new Frame[16];
+    private int depth;
+
+    private final int parallelThreshold;
+    private final ForkJoinPool pool;
+
+
+    XmlWriter(OutputStream os) {
+	this(os, BUFFER, 0, null);
+    }
+
+    /**
+     *  Lists with more than parallelThreshold elements are written in
+     *  parallel on pool; 0 or less means never.
+     */
+    XmlWriter(OutputStream os, int parallelThreshold, ForkJoinPool pool) {
+	this(os, BUFFER, parallelThreshold, pool);
+    }
+
+    XmlWriter(OutputStream os, int size, int parallelThreshold, ForkJoinPool pool) {
+	this.os = os;
+	this.buf = new byte[Math.max(size, 64)];
+	this.parallelThreshold = parallelThreshold;
+	this.pool = pool;
+    }
+
+
+    /**
+     *  The encoded forms of one key.   The _LIST ones are only made if
+     *  the key ever holds a List.
+     */
+    private static final class Tag {
+	final String name;
+	final byte[] open;	// <t>
+	final byte[] openLine;	// <t>\n
+	final byte[] closeLine;	// </t>\n
+	byte[] listOpenLine;	// <t_LIST>\n
+	byte[] listCloseLine;	// </t_LIST>\n
+
+	Tag(String name) {
+	    this.name = name;
+	    byte[] n = utf8(name);
+	    open = wrap("<", n, ">");
+	    openLine = wrap("<", n, ">\n");
+	    closeLine = wrap("</", n, ">\n");
+	}
+
+	void listTags() {
+	    if(listOpenLine == null) {
+		byte[] n = utf8(name + "_LIST");
+		listOpenLine = wrap("<", n, ">\n");
+		listCloseLine = wrap("</", n, ">\n");
+	    }
+	}
+
+	private static byte[] wrap(String pre, byte[] n, String post) {
+	    byte[] b = new byte[pre.length() + n.length + post.length()];
+	    int k = 0;
+	    for(int i = 0; i < pre.length(); i++) {
+		b[k++] = (byte)pre.charAt(i);
+	    }
+	    System.arraycopy(n, 0, b, k, n.length);
+	    k += n.length;
+	    for(int i = 0; i < post.length(); i++) {
+		b[k++] = (byte)post.charAt(i);
+	    }
+	    return b;
+	}
+    }
+
+
+    /**
+     *  An open Map (it != null) or List.   end, if not null, is written
+     *  at level when the frame is done.
+     */
+    private static final class Frame {
+	Iterator<Map.Entry<String,Object>> it;
+	List list;
+	int next;
+	int to;
+	String tag;
+	int level;
+	byte[] end;
+    }
+
+
+
+    /**
+     *  m as an element named tag, its entries one level in.
+     */
+    void map(String tag, Map<String,Object> m, int level) throws IOException {
+	int base = depth;
+	openMap(tag, m, level);
+	run(base);
+    }
+
+
+    /**
+     *  Elements [from, to) of l, as walked for a List named tag at level.
+     */
+    void elements(String tag, List l, int from, int to, int level) throws IOException {
+	int base = depth;
+	Frame f = push();
+	f.list = l;
+	f.next = from;
+	f.to = to;
+	f.tag = tag;
+	f.level = level;
+	run(base);
+    }
+
+
+    private void run(int base) throws IOException {
+	while(depth > base) {
+	    Frame f = stack[depth - 1];
+
+	    if(f.it != null) {
+		if(!f.it.hasNext()) {
+		    pop();
+		    continue;
+		}
+		Map.Entry<String,Object> e = f.it.next();
+		Object ov = e.getValue();
+		if(ov == null) {
+		    continue;
+		}
+		String key = e.getKey();
+
+		if(ov instanceof Map) {
+		    openMap(key, (Map)ov, f.level + 1);
+
+		} else if(ov instanceof List) {
+		    Tag t = tag(key);
+		    t.listTags();
+		    indent(f.level + 1);
+		    put(t.listOpenLine);
+		    pushList(key, (List)ov, f.level + 1, t.listCloseLine);
+
+		} else {
+		    item(key, ov, f.level + 1);
+		}
+
+	    } else {
+		if(f.next >= f.to || f.next >= f.list.size()) {
+		    pop();
+		    continue;
+		}
+		Object ov = f.list.get(f.next++);
+		if(ov == null) {
+		    continue;
+		}
+
+		if(ov instanceof Map) {
+		    openMap(f.tag, (Map)ov, f.level + 1);
+		} else if(ov instanceof List) {
+		    pushList(f.tag, (List)ov, f.level + 1, null);
+		} else {
+		    item(f.tag, ov, f.level + 1);
+		}
+	    }
+	}
+    }
+
+
+    /**
+     *  Just the start (or end) of an element that holds a Map or the
+     *  name_LIST wrapper of a List; for writers that produce the
+     *  contents piecemeal.
+     */
+    void open(String tag, int level, boolean list) throws IOException {
+	Tag t = tag(tag);
+	indent(level);
+	if(list) {
+	    t.listTags();
+	    put(t.listOpenLine);
+	} else {
+	    put(t.openLine);
+	}
+    }
+
+    void close(String tag, int level, boolean list) throws IOException {
+	Tag t = tag(tag);
+	indent(level);
+	if(list) {
+	    t.listTags();
+	    put(t.listCloseLine);
+	} else {
+	    put(t.closeLine);
+	}
+    }
+
+
+    /**
+     *  Write out whatever is buffered.   The OutputStream itself is not
+     *  flushed.
+     */
+    void flush() throws IOException {
+	if(pos > 0) {
+	    os.write(buf, 0, pos);
+	    pos = 0;
+	}
+    }
+
+
+
+    private void openMap(String tag, Map<String,Object> m, int level) throws IOException {
+	Tag t = tag(tag);
+	indent(level);
+	put(t.openLine);
+
+	Frame f = push();
+	f.it = m.entrySet().iterator();
+	f.level = level;
+	f.end = t.closeLine;
+    }
+
+    private void pushList(String tag, List l, int level, byte[] end) throws IOException {
+	if(parallelThreshold > 0 && l.size() > parallelThreshold && l instanceof RandomAccess
+	   && pool.getParallelism() > 1) {
+	    parallel(tag, l, level);
+	    if(end != null) {
+		indent(level);
+		put(end);
+	    }
+	    return;
+	}
+
+	Frame f = push();
+	f.list = l;
+	f.next = 0;
+	f.to = Integer.MAX_VALUE;
+	f.tag = tag;
+	f.level = level;
+	f.end = end;
+    }
+
+    private Frame push() {
+	if(depth == stack.length) {
+	    stack = Arrays.copyOf(stack, depth * 2);
+	}
+	Frame f = stack[depth];
+	if(f == null) {
+	    f = stack[depth] = new Frame();
+	}
+	depth++;
+	return f;
+    }
+
+    private void pop() throws IOException {
+	Frame f = stack[--depth];
+	if(f.end != null) {
+	    indent(f.level);
+	    put(f.end);
+	}
+	f.it = null;
+	f.list = null;
+	f.tag = null;
+	f.end = null;
+    }
+
+
+    /**
+     *  The elements of l, CHUNK at a time on the pool, copied out in
+     *  order.   The pieces are written with no parallelism of their own.
+     */
+    private void parallel(final String tag, final List l, final int level) throws IOException {
+	int n = l.size();
+	int window = Math.max(2, pool.getParallelism() * 2);
+	ArrayDeque<ForkJoinTask<Chunk>> running = new ArrayDeque<ForkJoinTask<Chunk>>();
+	int from = 0;
+
+	try {
+	    while(from < n || !running.isEmpty()) {
+		while(from < n && running.size() < window) {
+		    final int a = from;
+		    final int b = Math.min(n, from + CHUNK);
+		    running.add(pool.submit(() -> {
+				Chunk c = new Chunk();
+				XmlWriter w = new XmlWriter(c);
+				w.elements(tag, l, a, b, level);
+				w.flush();
+				return c;
+			    }));
+		    from = b;
+		}
+		running.poll().join().writeTo(this);
+	    }
+	} finally {
+	    // Only left over if something failed:
+	    for(ForkJoinTask<Chunk> t : running) {
+		t.cancel(false);
+	    }
+	}
+    }
+
+    /**
+     *  ByteArrayOutputStream whose array we copy from directly.
+     */
+    private static final class Chunk extends java.io.ByteArrayOutputStream {
+	Chunk() {
+	    super(64 * 1024);
+	}
+
+	void writeTo(XmlWriter w) throws IOException {
+	    w.put(buf, 0, count);
+	}
+    }
+
+
+    private void item(String key, Object ov, int level) throws IOException {
+	Tag t = tag(key);
+	indent(level);
+	put(t.open);
+	text(ov.toString());
+	put(t.closeLine);
+    }
+
+
+    private Tag tag(String name) {
+	Tag t = tags.get(name);
+	if(t == null) {
+	    t = new Tag(name);
+	    tags.put(name, t);
+	}
+	return t;
+    }
+
+
+    private void indent(int level) throws IOException {
+	if(level <= 0) {
+	    return;
+	}
+	while(level > INDENTS) {
+	    indent(INDENTS);
+	    level -= INDENTS;
+	}
+	while(indents.size() <= level) {
+	    int n = indents.size();
+	    byte[] b = new byte[n * INDENT.length];
+	    for(int i = 0; i < n; i++) {
+		System.arraycopy(INDENT, 0, b, i * INDENT.length, INDENT.length);
+	    }
+	    indents.add(b);
+	}
+	put(indents.get(level));
+    }
+
+
+    private void put(byte[] b) throws IOException {
+	put(b, 0, b.length);
+    }
+
+    private void put(byte[] b, int off, int n) throws IOException {
+	if(pos + n > buf.length) {
+	    flush();
+	    if(n > buf.length) {
+		os.write(b, off, n);
+		return;
+	    }
+	}
+	System.arraycopy(b, off, buf, pos, n);
+	pos += n;
+    }
+
+
+    /**
+     *  s with &lt; &gt; and &amp; escaped, as UTF-8.   An unpaired
+     *  surrogate comes out as '?', like String.getBytes() does.
+     */
+    private void text(String s) throws IOException {
+	int n = s.length();
+	byte[] b = buf;
+
+	for(int i = 0; i < n; i++) {
+	    if(pos + 5 > b.length) {
+		flush();
+	    }
+	    char c = s.charAt(i);
+
+	    if(c < 0x80) {
+		switch(c) {
+		case '<':
+		    b[pos++] = '&'; b[pos++] = 'l'; b[pos++] = 't'; b[pos++] = ';';
+		    break;
+		case '>':
+		    b[pos++] = '&'; b[pos++] = 'g'; b[pos++] = 't'; b[pos++] = ';';
+		    break;
+		case '&':
+		    b[pos++] = '&'; b[pos++] = 'a'; b[pos++] = 'm'; b[pos++] = 'p'; b[pos++] = ';';
+		    break;
+		default:
+		    b[pos++] = (byte)c;
+		}
+
+	    } else if(c < 0x800) {
+		b[pos++] = (byte)(0xc0 | (c >> 6));
+		b[pos++] = (byte)(0x80 | (c & 0x3f));
+
+	    } else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+		int cp = Character.toCodePoint(c, s.charAt(++i));
+		b[pos++] = (byte)(0xf0 | (cp >> 18));
+		b[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+		b[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+		b[pos++] = (byte)(0x80 | (cp & 0x3f));
+
+	    } else if(Character.isSurrogate(c)) {
+		b[pos++] = '?';
+
+	    } else {
+		b[pos++] = (byte)(0xe0 | (c >> 12));
+		b[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+		b[pos++] = (byte)(0x80 | (c & 0x3f));
+	    }
+	}
+    }
+
+
+    static byte[] utf8(String s) {
+	return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
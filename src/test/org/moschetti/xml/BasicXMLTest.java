@@ -1,6 +1,8 @@
 package test;
 
 import org.moschetti.xml.XMLUtils;
+import org.moschetti.xml.Map2XML;
+import org.moschetti.xml.RecordWriter;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -382,6 +384,1337 @@ public class BasicXMLTest {
 
 
 
+    @Test
+    public void records() {
+
+	StringBuilder xml = new StringBuilder();
+	xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+
+	xml.append("<data>\n");
+	xml.append("  <hdr>top</hdr>\n");
+	for(int jj = 0; jj < 5; jj++) {
+	    xml.append("  <item id=\"" + jj + "\"><a>" + jj + "</a><b>x</b></item>\n");
+	}
+	xml.append("</data>\n");
+
+	try {
+	    InputStream is = new ByteArrayInputStream(xml.toString().getBytes());
+
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+
+	    final List<Map<String,Object>> recs = new ArrayList<Map<String,Object>>();
+
+	    XMLUtils.parseRecords(is, "/data/item", xx, recs::add);
+
+	    Assert.assertEquals(5, recs.size());
+	    for(int jj = 0; jj < 5; jj++) {
+		Map<String,Object> item = (Map)recs.get(jj).get("item");
+		Assert.assertEquals(jj, item.get("a"));
+		Map attrs = (Map)recs.get(jj).get("__attributes_item");
+		Assert.assertEquals("" + jj, attrs.get("id"));
+	    }
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void streamRecords() {
+
+	StringBuilder xml = new StringBuilder();
+	xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+
+	xml.append("<data xmlns:p=\"urn:p\">\n");
+	for(int jj = 0; jj < 100; jj++) {
+	    xml.append("  <p:item><a>" + jj + "</a></p:item>\n");
+	}
+	// Never reached because of limit() below:
+	xml.append("  <p:item><a>broken</p:item>\n");
+	xml.append("</data>\n");
+
+	try {
+	    InputStream is = new ByteArrayInputStream(xml.toString().getBytes());
+
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+	    xx.namespaceField = "__ns";
+
+	    List<Object> vals = new ArrayList<Object>();
+	    try(java.util.stream.Stream<Map<String,Object>> s = XMLUtils.streamRecords(is, "/data/item", xx)) {
+		s.map(r -> (Map)r.get("item"))
+		    .filter(m -> ((Integer)m.get("a")) % 2 == 0)
+		    .limit(3)
+		    .forEach(m -> vals.add(m.get("a")));
+	    }
+	    Assert.assertEquals(java.util.Arrays.asList(0, 2, 4), vals);
+
+	    // Run to the end (and past it) with deListify; same records as
+	    // the push side:
+	    String wx = "<data><item><v_LIST><v>1</v><v>2</v></v_LIST></item><item><v_LIST/></item></data>";
+	    xx.deListify = true;
+	    List<Map<String,Object>> want = new ArrayList<Map<String,Object>>();
+	    XMLUtils.parseRecords(new ByteArrayInputStream(wx.getBytes()), "/data/item", xx, want::add);
+	    List<Map<String,Object>> got = new ArrayList<Map<String,Object>>();
+	    org.moschetti.xml.RecordIterator ri = XMLUtils.recordIterator(new ByteArrayInputStream(wx.getBytes()), "/data/item", xx);
+	    ri.forEachRemaining(got::add);
+	    Assert.assertFalse(ri.hasNext());
+	    ri.close();
+	    Assert.assertEquals(want, got);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void compactMap() {
+
+	String xml = "<data><a>1</a><b><c>x</c><c>y</c></b><d k=\"v\"/><e>3</e></data>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.mapFactory = org.moschetti.xml.CompactMap::new;
+
+	    Map<String,Object> q1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+	    Map<String,Object> q2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), java.util.LinkedHashMap.class);
+
+	    Assert.assertEquals(q2, q1);
+
+	    // Insertion order is kept, just like LinkedHashMap:
+	    Map<String,Object> d1 = (Map)q1.get("data");
+	    Map<String,Object> d2 = (Map)q2.get("data");
+	    Assert.assertEquals(new ArrayList<String>(d2.keySet()), new ArrayList<String>(d1.keySet()));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void convertNumbers() {
+
+	String[] vals = { "0", "001", "-0.123", ".5", "5.", "2300000000",
+			  "-9223372036854775808", "82983646557672300000000",
+			  "1e5", "-", "." };
+	Object[] expect = { 0, "001", -0.123, 0.5, 5.0, 2300000000L,
+			    Long.MIN_VALUE, 8.29836465576723E22,
+			    "1e5", "-", "." };
+
+	StringBuilder xml = new StringBuilder();
+	xml.append("<data>");
+	for(int k = 0; k < vals.length; k++) {
+	    xml.append(makeTag(k, vals[k]));
+	}
+	xml.append("</data>");
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+
+	    Map<String,Object> qq = XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes()), xx);
+	    Map<String,Object> qq2 = (Map)qq.get("data");
+
+	    for(int k = 0; k < vals.length; k++) {
+		Assert.assertEquals(vals[k], expect[k], qq2.get("a" + k));
+	    }
+
+	    xx.useBigDecimal = true;
+	    qq = XMLUtils.parseXML(new ByteArrayInputStream("<d>-10.50</d>".getBytes()), xx);
+	    Assert.assertEquals(new BigDecimal("-10.50"), qq.get("d"));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void javaTimeDates() {
+
+	String xml = "<d><a>2016-04-05</a><b>2009-09-28T14:07:00Z</b>"
+	    + "<c>2018-11-28T04:00:00.456-08:30</c><e>2016-04-05</e></d>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertDates = true;
+	    xx.dateType = XMLUtils.ParseOptions.DATES_AS_JAVA_TIME;
+
+	    Map<String,Object> qq = (Map)XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx).get("d");
+
+	    Assert.assertEquals(java.time.LocalDate.of(2016, 4, 5), qq.get("a"));
+	    Assert.assertEquals(java.time.Instant.parse("2009-09-28T14:07:00Z"), qq.get("b"));
+	    Assert.assertEquals(java.time.OffsetDateTime.parse("2018-11-28T04:00:00.456-08:30"), qq.get("c"));
+
+	    // Repeated dates come out of the cache:
+	    Assert.assertSame(qq.get("a"), qq.get("e"));
+
+	    // ... but a java.util.Date is mutable, so it is a new one each time:
+	    xx.dateType = XMLUtils.ParseOptions.DATES_AS_UTIL_DATE;
+	    qq = (Map)XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx).get("d");
+	    Assert.assertEquals(qq.get("a"), qq.get("e"));
+	    Assert.assertNotSame(qq.get("a"), qq.get("e"));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void lazyConversion() {
+
+	String xml = "<d><r a=\"1\"><c>5</c><c>x</c><c>2016-04-05</c><n>1.5</n></r><r><c>7</c></r></d>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+	    xx.convertDates = true;
+
+	    Map<String,Object> eager = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+
+	    xx.lazyConversion = true;
+	    Map<String,Object> lazy = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+
+	    List l = (List)((Map)lazy.get("d")).get("r");
+	    Assert.assertEquals(7, ((Map)l.get(1)).get("c"));
+
+	    Assert.assertEquals(eager, lazy);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void parallelParse() {
+
+	StringBuilder xml = new StringBuilder();
+	xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+
+	xml.append("<r:root xmlns:r=\"urn:r\">\n  <hdr>top</hdr>\n");
+	for(int pp = 0; pp < 3; pp++) {
+	    xml.append("  <data id='" + pp + "'>\n");
+	    for(int jj = 0; jj < 40000; jj++) {
+		if(jj % 1000 == 7) {
+		    xml.append("    <other>o</other><!-- <item> -->\n");
+		}
+		if(jj % 3 == 0) {
+		    xml.append("    <item id=\"" + jj + "\"/>\n");
+		} else {
+		    xml.append("    <item><a>" + jj + "</a><b><![CDATA[<x>]]></b></item>\n");
+		}
+	    }
+	    xml.append("  </data>\n");
+	}
+	xml.append("  <tail/>\n</r:root>\n");
+
+	try {
+	    byte[] data = xml.toString().getBytes("UTF-8");
+
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+
+	    Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(data), java.util.LinkedHashMap.class, xx);
+	    Map<String,Object> m2 = XMLUtils.parseXMLParallel(data, "/root/data/item", java.util.LinkedHashMap.class, xx, java.util.concurrent.ForkJoinPool.commonPool());
+
+	    Assert.assertEquals(m1, m2);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void mappedFile() {
+
+	String xml = "<d><r a=\"1\"><c>5</c></r><r><c>7</c></r></d>";
+
+	java.nio.file.Path f = null;
+
+	try {
+	    f = java.nio.file.Files.createTempFile("xmlutils", ".xml");
+	    java.nio.file.Files.write(f, xml.getBytes());
+
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+
+	    Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+	    Map<String,Object> m2 = XMLUtils.parseXML(f, xx);
+
+	    Assert.assertEquals(m1, m2);
+	    Assert.assertEquals(m1, XMLUtils.parseXMLParallel(f, "/d/r", xx));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	} finally {
+	    try {
+		java.nio.file.Files.deleteIfExists(f);
+	    } catch(Exception e) {
+		// don't care
+	    }
+	}
+    }
+
+
+
+    @Test
+    public void projection() {
+
+	String xml = "<Env v=\"1\"><Hdr><To a=\"b\">x</To><Act>y</Act><Big><q>1</q></Big></Hdr>"
+	    + "<Body><Item>1</Item><Item>2</Item></Body></Env>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.include("/Env/Hdr/To", "/Env/Body");
+	    xx.exclude("/Env/Body/Item");
+
+	    Map<String,Object> m = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+	    Map env = (Map)m.get("Env");
+	    Map hdr = (Map)env.get("Hdr");
+
+	    Assert.assertEquals("x", hdr.get("To"));
+	    Assert.assertEquals(2, hdr.size()); // To + __attributes_To
+	    Assert.assertEquals(0, ((Map)env.get("Body")).size());
+	    Assert.assertEquals("1", ((Map)m.get("__attributes_Env")).get("v"));
+
+	    // Stop once To and Act are in; the junk at the end is never read:
+	    XMLUtils.ParseOptions yy = new XMLUtils.ParseOptions().include("/Env/Hdr/To", "/Env/Hdr/Act");
+	    yy.stopWhenIncludesSeen = true;
+
+	    m = XMLUtils.parseXML(new ByteArrayInputStream((xml + "<<<junk").getBytes()), yy);
+	    hdr = (Map)((Map)m.get("Env")).get("Hdr");
+	    Assert.assertEquals("y", hdr.get("Act"));
+	    Assert.assertNull(((Map)m.get("Env")).get("Body"));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void typeHints() {
+
+	String xml = "<f><i><sku>00123</sku><q> 0042 </q><ok>true</ok><n>12</n><bad>abc</bad></i></f>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+	    xx.typeHint("/f/i/sku", String.class)
+		.typeHint("/f/i/q", Long.class)
+		.typeHint("/f/i/ok", Boolean.class)
+		.typeHint("/f/i/bad", Integer.class);
+
+	    Map<String,Object> m = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+	    Map item = (Map)((Map)m.get("f")).get("i");
+
+	    Assert.assertEquals("00123", item.get("sku"));
+	    Assert.assertEquals(42L, item.get("q"));
+	    Assert.assertEquals(Boolean.TRUE, item.get("ok"));
+	    Assert.assertEquals(12, item.get("n"));    // not hinted; sniffed as usual
+	    Assert.assertEquals("abc", item.get("bad")); // does not fit; left alone
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void adaptiveSniffing() {
+
+	StringBuilder xml = new StringBuilder("<f>");
+	for(int jj = 0; jj < 50; jj++) {
+	    xml.append("<i><name>n" + jj + "</name><q>" + jj + "</q></i>");
+	}
+	xml.append("</f>");
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+	    xx.sniffProfile = new org.moschetti.xml.SniffProfile(10);
+
+	    Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes()), xx);
+
+	    Assert.assertEquals(java.util.Collections.singleton("/f/i/name"), xx.sniffProfile.stringPaths());
+
+	    // Round trip thru the saved form:
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    xx.sniffProfile.write(bos);
+	    xx.sniffProfile = org.moschetti.xml.SniffProfile.read(new ByteArrayInputStream(bos.toByteArray()), 10);
+	    Assert.assertEquals(java.util.Collections.singleton("/f/i/name"), xx.sniffProfile.stringPaths());
+
+	    Map<String,Object> m2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes()), xx);
+	    Assert.assertEquals(m1, m2);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void tapeDocument() {
+
+	String xml = "<a:r xmlns:a=\"urn:a\" v=\"1\"><h><t>x</t><e/><e k=\"2\"/></h>"
+	    + "<i n=\"1\"><q>12</q><s>caf\u00e9 \u20ac</s></i><i><q>2.5</q><s/></i><i n=\"3\"><q>-4</q></i>"
+	    + "<a:w><a:x>d</a:x></a:w></a:r>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    for(int kk = 0; kk < 2; kk++) {
+		Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes("UTF-8")), xx);
+		org.moschetti.xml.TapeDocument doc = XMLUtils.parseToTape(new ByteArrayInputStream(xml.getBytes("UTF-8")), xx);
+
+		Assert.assertEquals(m1, doc.getRootMap());
+		Assert.assertEquals(15, doc.elementCount());
+
+		xx.storeBlanks = true;
+		xx.convertNumbers = true;
+		xx.namespaceField = "__ns";
+	    }
+
+	    Map<String,Object> m = XMLUtils.parseToTape(new ByteArrayInputStream(xml.getBytes("UTF-8")), xx).getRootMap();
+	    List items = (List)((Map)m.get("r")).get("i");
+	    Assert.assertEquals(-4, ((Map)items.get(2)).get("q"));
+	    try {
+		((Map)items.get(0)).put("q", 1);
+		Assert.fail("tape views are read-only");
+	    } catch(UnsupportedOperationException e) {
+		// expected
+	    }
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void feedParser() {
+
+	StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<d:data xmlns:d=\"urn:d\" v=\"1\"><hdr>h</hdr>");
+	for(int jj = 0; jj < 500; jj++) {
+	    sb.append("<d:item n=\"" + jj + "\"><a>" + jj + "</a><b>x &amp; y</b></d:item>\n");
+	}
+	sb.append("<tail/></d:data>");
+	final byte[] xml = sb.toString().getBytes();
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+
+	    List<Map<String,Object>> want = new ArrayList<Map<String,Object>>();
+	    XMLUtils.parseRecords(new ByteArrayInputStream(xml), "/data/item", xx, want::add);
+
+	    // Dribble the bytes thru a pipe; read them with a selector
+	    // so nothing ever blocks waiting for input:
+	    final java.nio.channels.Pipe pipe = java.nio.channels.Pipe.open();
+	    Thread writer = new Thread(() -> {
+		    try {
+			for(int off = 0; off < xml.length; off += 333) {
+			    pipe.sink().write(java.nio.ByteBuffer.wrap(xml, off, Math.min(333, xml.length - off)));
+			    Thread.sleep(1);
+			}
+			pipe.sink().close();
+		    } catch(Exception e) {
+			throw new RuntimeException(e);
+		    }
+	    });
+	    writer.start();
+
+	    List<Map<String,Object>> got = new ArrayList<Map<String,Object>>();
+	    org.moschetti.xml.FeedParser fp = XMLUtils.feedParser("/data/item", xx, got::add);
+	    org.moschetti.xml.FeedParser fd = XMLUtils.feedParser(xx);
+
+	    java.nio.channels.Selector sel = java.nio.channels.Selector.open();
+	    pipe.source().configureBlocking(false);
+	    pipe.source().register(sel, java.nio.channels.SelectionKey.OP_READ);
+	    java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(100);
+
+	    int maxHeld = 0;
+	    boolean open = true;
+	    while(open) {
+		sel.select();
+		sel.selectedKeys().clear();
+		int n;
+		while((n = pipe.source().read(bb)) > 0) {
+		    bb.flip();
+		    fd.feed(bb.duplicate());
+		    fp.feed(bb);
+		    bb.clear();
+		    maxHeld = Math.max(maxHeld, fp.bytesHeld());
+		}
+		open = (n >= 0);
+	    }
+	    writer.join();
+	    sel.close();
+
+	    Assert.assertNull(fp.endOfInput());
+	    Assert.assertEquals(want, got);
+	    Assert.assertTrue(maxHeld < 200); // about one record, not the document
+	    Assert.assertEquals(XMLUtils.parseXML(new ByteArrayInputStream(xml), xx), fd.endOfInput());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void parseAll() {
+
+	try {
+	    List<java.util.function.Supplier<InputStream>> inputs = new ArrayList<java.util.function.Supplier<InputStream>>();
+	    for(int jj = 0; jj < 200; jj++) {
+		final String xml = (jj % 50 == 7) ? "<a><b>broken</a>" : "<a><n>" + jj + "</n></a>";
+		inputs.add(() -> new ByteArrayInputStream(xml.getBytes()));
+	    }
+	    inputs.add(() -> { throw new IllegalStateException("no stream"); });
+
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+
+	    org.moschetti.xml.XmlParserTemplate tpl = new org.moschetti.xml.XmlParserTemplate(xx);
+	    List<XMLUtils.ParseResult> rr = tpl.parseAll(inputs, 8);
+	    Assert.assertEquals(rr.size(), tpl.parseAll(inputs, 8).size()); // again, same template
+
+	    Assert.assertEquals(201, rr.size());
+	    for(int jj = 0; jj < 200; jj++) {
+		XMLUtils.ParseResult r = rr.get(jj);
+		Assert.assertEquals(jj, r.index);
+		if(jj % 50 == 7) {
+		    Assert.assertTrue(r.error instanceof org.moschetti.xml.XMLParsingException);
+		} else {
+		    Assert.assertTrue(r.isOK());
+		    Assert.assertEquals(jj, ((Map)r.map.get("a")).get("n"));
+		}
+	    }
+	    Assert.assertTrue(rr.get(200).error instanceof IllegalStateException);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void attributeStorage() {
+
+	String xml = "<r><amt currency=\"USD\">1</amt><amt>2</amt><amt currency=\"EUR\" x=\"1\">3</amt>"
+	    + "<g k=\"v\"><h>1</h></g></r>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+
+	    xx.attributeStorage = XMLUtils.ParseOptions.ATTRIBUTES_COMPACT;
+	    Map<String,Object> m2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+	    Assert.assertEquals(m1, m2);
+
+	    Map r = (Map)m2.get("r");
+	    List al = (List)r.get("__attributes_amt");
+	    Assert.assertNull(al.get(1));
+	    Assert.assertTrue(al.get(2) instanceof org.moschetti.xml.AttributeMap);
+	    Assert.assertEquals("EUR", ((Map)al.get(2)).get("currency"));
+
+	    xx.attributeStorage = XMLUtils.ParseOptions.ATTRIBUTES_DROP;
+	    r = (Map)XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx).get("r");
+	    Assert.assertEquals(2, r.size()); // amt and g, no __attributes_
+	    Assert.assertEquals(3, ((List)r.get("amt")).size());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void siblingRuns() {
+
+	StringBuilder xml = new StringBuilder("<rows><x>1</x>");
+	for(int jj = 0; jj < 1000; jj++) {
+	    xml.append(jj == 900 ? "<row k=\"v\">" : "<row>").append(jj).append("</row>");
+	    if(jj == 500) {
+		xml.append("<x>2</x>"); // interrupts the run
+	    }
+	}
+	xml.append("</rows>");
+
+	try {
+	    Map rows = (Map)XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes())).get("rows");
+
+	    List vals = (List)rows.get("row");
+	    List attrs = (List)rows.get("__attributes_row");
+	    Assert.assertEquals(1000, vals.size());
+	    Assert.assertEquals("999", vals.get(999));
+	    Assert.assertEquals(1000, attrs.size());
+	    Assert.assertNull(attrs.get(899));
+	    Assert.assertEquals("v", ((Map)attrs.get(900)).get("k"));
+	    Assert.assertNull(attrs.get(901));
+	    Assert.assertEquals(2, ((List)rows.get("x")).size());
+
+	    // Still a plain mutable List:
+	    attrs.set(3, new HashMap());
+	    Assert.assertNotNull(attrs.get(3));
+	    Assert.assertNull(attrs.get(4));
+	    Assert.assertEquals(1000, attrs.size());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void deListifyWhileParsing() {
+
+	String xml = "<doc><name>x</name>"
+	    + "<items_LIST><items><id>1</id><tags_LIST><tags>a</tags><tags>b</tags></tags_LIST></items>"
+	    + "<items><id>2</id></items></items_LIST>"
+	    + "<one_LIST><one>only</one></one_LIST>"
+	    + "<grp><codes_LIST><codes>7</codes><codes>8</codes></codes_LIST></grp></doc>";
+
+	try {
+	    Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()));
+	    XMLUtils.deListify(m1);
+
+	    XMLUtils.ParseOptions opts = new XMLUtils.ParseOptions();
+	    opts.deListify = true;
+	    Map<String,Object> m2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), opts);
+
+	    Assert.assertEquals(m1, m2);
+
+	    Map doc = (Map)m2.get("doc");
+	    Assert.assertEquals(2, ((List)doc.get("items")).size());
+	    Assert.assertNull(doc.get("items_LIST"));
+	    Assert.assertEquals(2, ((List)((Map)doc.get("grp")).get("codes")).size());
+	    // A single item is not a List, so it stays wrapped:
+	    Assert.assertNotNull(doc.get("one_LIST"));
+
+	    // Records come out as if each had been deListified:
+	    final List<Map> recs = new ArrayList<Map>();
+	    XMLUtils.parseRecords(new ByteArrayInputStream(xml.getBytes()), "/doc/items_LIST/items", opts, rec -> recs.add(rec));
+	    Assert.assertEquals(2, recs.size());
+	    Assert.assertEquals(2, ((List)((Map)recs.get(0).get("items")).get("tags")).size());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+
+    @Test
+    public void deListifyDeepAndParallel() {
+
+	// Repeated <r> (no wrapper) so the walk goes into every record:
+	StringBuilder sb = new StringBuilder("<doc>");
+	for(int i = 0; i < 5000; i++) {
+	    sb.append("<r><n>" + i + "</n><v_LIST><v>1</v><v>2</v></v_LIST><s><w_LIST><w>a</w><w>b</w></w_LIST></s></r>");
+	}
+	sb.append("</doc>");
+	String xml = sb.toString();
+
+	try {
+	    Map<String,Object> m1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()));
+	    Map<String,Object> m2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()));
+	    XMLUtils.deListify(m1);
+	    XMLUtils.deListifyParallel(m2);
+
+	    Assert.assertEquals(m1, m2);
+	    List r = (List)((Map)m2.get("doc")).get("r");
+	    Assert.assertEquals(5000, r.size());
+	    Assert.assertEquals(2, ((List)((Map)r.get(4999)).get("v")).size());
+	    Assert.assertEquals(2, ((List)((Map)((Map)r.get(4999)).get("s")).get("w")).size());
+
+	    // Deep enough to blow the stack of a recursive walk:
+	    Map<String,Object> deep = new HashMap<String,Object>();
+	    Map<String,Object> cur = deep;
+	    for(int i = 0; i < 100000; i++) {
+		Map<String,Object> n = new HashMap<String,Object>();
+		cur.put("a", n);
+		cur = n;
+	    }
+	    List<String> codes = new ArrayList<String>();
+	    codes.add("7"); codes.add("8");
+	    Map<String,Object> wrap = new HashMap<String,Object>();
+	    wrap.put("codes", codes);
+	    cur.put("codes_LIST", wrap);
+
+	    XMLUtils.deListify(deep);
+	    Assert.assertSame(codes, cur.get("codes"));
+	    Assert.assertNull(cur.get("codes_LIST"));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void writeUtf8() {
+	try {
+	    Map<String,Object> doc = new HashMap<String,Object>();
+	    doc.put("name", "caf\u00e9 \u20ac \ud83d\ude00 <&>");
+	    List<Object> codes = new ArrayList<Object>();
+	    codes.add("7"); codes.add("8");
+	    doc.put("codes", codes);
+	    Map<String,Object> top = new HashMap<String,Object>();
+	    top.put("doc", doc);
+
+	    ByteArrayOutputStream b = new ByteArrayOutputStream();
+	    Map2XML.writeXML(b, top, "env");
+	    Map<String,Object> back = XMLUtils.parseXML(new ByteArrayInputStream(b.toByteArray()));
+	    Map d2 = (Map)((Map)back.get("env")).get("doc");
+	    Assert.assertEquals(doc.get("name"), d2.get("name"));
+	    Assert.assertEquals(2, ((List)((Map)d2.get("codes_LIST")).get("codes")).size());
+
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void writeRecordStream() {
+	try {
+	    List<Map<String,Object>> recs = new ArrayList<Map<String,Object>>();
+	    for(int i = 0; i < 3; i++) {
+		Map<String,Object> r = new HashMap<String,Object>();
+		r.put("id", i);
+		List<Object> tags = new ArrayList<Object>();
+		tags.add("a"); tags.add("b");
+		r.put("tags", tags);
+		recs.add(r);
+	    }
+	    Map<String,Object> top = new HashMap<String,Object>();
+	    top.put("row", recs);
+
+	    ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+	    Map2XML.writeXML(b1, top, "export");
+
+	    ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+	    Map2XML.writeXML(b2, recs.iterator(), "export", "row");
+	    Assert.assertEquals(b1.toString("UTF-8"), b2.toString("UTF-8"));
+
+	    ByteArrayOutputStream b3 = new ByteArrayOutputStream();
+	    try(RecordWriter rw = Map2XML.recordWriter(b3, "export", "row")) {
+		for(Map<String,Object> r : recs) {
+		    rw.writeRecord(r);
+		}
+	    }
+	    Assert.assertEquals(b1.toString("UTF-8"), b3.toString("UTF-8"));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void writeToChannels() {
+	try {
+	    List<Map<String,Object>> recs = new ArrayList<Map<String,Object>>();
+	    for(int i = 0; i < 20000; i++) {
+		Map<String,Object> r = new HashMap<String,Object>();
+		r.put("id", i);
+		r.put("name", "n" + i);
+		recs.add(r);
+	    }
+	    Map<String,Object> top = new HashMap<String,Object>();
+	    top.put("row", recs);
+
+	    ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+	    Map2XML.writeXML(b1, top, "export");
+	    byte[] expect = b1.toByteArray();
+
+	    ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+	    Map2XML.writeXML(java.nio.channels.Channels.newChannel(b2), top, "export");
+	    Assert.assertArrayEquals(expect, b2.toByteArray());
+
+	    java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocateDirect(expect.length + 10);
+	    bb.position(10);
+	    Map2XML.writeXML(bb, top, "export");
+	    Assert.assertEquals(10 + expect.length, bb.position());
+	    byte[] got = new byte[expect.length];
+	    bb.position(10);
+	    bb.get(got);
+	    Assert.assertArrayEquals(expect, got);
+
+	    java.nio.file.Path p = java.nio.file.Files.createTempFile("map2xml", ".xml");
+	    try {
+		// Mapped well past the end, so must be cut back:
+		Map2XML.writeXML(p, top, "export");
+		Assert.assertArrayEquals(expect, java.nio.file.Files.readAllBytes(p));
+
+		// Into the middle of a longer file: never shortened, and
+		// the channel is left at the end of the output.
+		int at = 100;
+		byte[] old = new byte[at + expect.length + 5000];
+		java.util.Arrays.fill(old, (byte)'#');
+		java.nio.file.Files.write(p, old);
+		try(java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(p, java.nio.file.StandardOpenOption.READ,
+											java.nio.file.StandardOpenOption.WRITE)) {
+		    fc.position(at);
+		    Map2XML.writeXML(fc, top, "export");
+		    Assert.assertEquals(at + expect.length, fc.position());
+		    Assert.assertEquals(old.length, fc.size());
+		}
+		byte[] f = java.nio.file.Files.readAllBytes(p);
+		Assert.assertEquals(old.length, f.length);
+		Assert.assertArrayEquals(java.util.Arrays.copyOf(old, at), java.util.Arrays.copyOf(f, at));
+		Assert.assertArrayEquals(expect, java.util.Arrays.copyOfRange(f, at, at + expect.length));
+		Assert.assertArrayEquals(java.util.Arrays.copyOfRange(old, at + expect.length, old.length),
+					 java.util.Arrays.copyOfRange(f, at + expect.length, f.length));
+
+		// Past the end of a shorter file: grows to exactly the end.
+		java.nio.file.Files.write(p, new byte[at + 10]);
+		try(java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(p, java.nio.file.StandardOpenOption.READ,
+											java.nio.file.StandardOpenOption.WRITE)) {
+		    fc.position(at);
+		    Map2XML.writeXML(fc, top, "export");
+		    Assert.assertEquals(at + expect.length, fc.position());
+		    Assert.assertEquals(at + expect.length, fc.size());
+		}
+	    } finally {
+		java.nio.file.Files.delete(p);
+	    }
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void writeListsInParallel() {
+	try {
+	    List<Object> recs = new ArrayList<Object>();
+	    for(int i = 0; i < 10000; i++) {
+		Map<String,Object> r = new HashMap<String,Object>();
+		r.put("id", i);
+		r.put("name", "n<" + i);
+		if(i % 100 == 0) {
+		    List<Object> tags = new ArrayList<Object>();
+		    tags.add("a"); tags.add("b");
+		    r.put("tags", tags);
+		}
+		recs.add(r);
+		if(i % 77 == 0) {
+		    recs.add(null);
+		}
+	    }
+	    Map<String,Object> top = new HashMap<String,Object>();
+	    top.put("row", recs);
+
+	    Map2XML.WriteOptions off = new Map2XML.WriteOptions();
+	    off.parallelThreshold = 0;
+	    ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+	    Map2XML.writeXML(b1, top, "export", off);
+
+	    // Own pool so the parallel path runs even on one CPU:
+	    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+	    try {
+		Map2XML.WriteOptions on = new Map2XML.WriteOptions();
+		on.parallelThreshold = 100;
+		on.pool = pool;
+		ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+		Map2XML.writeXML(b2, top, "export", on);
+		Assert.assertArrayEquals(b1.toByteArray(), b2.toByteArray());
+
+		ByteArrayOutputStream b3 = new ByteArrayOutputStream();
+		try(RecordWriter rw = Map2XML.recordWriter(b3, "doc", "rec", on)) {
+		    rw.writeRecord(top);
+		}
+		ByteArrayOutputStream b4 = new ByteArrayOutputStream();
+		try(RecordWriter rw = Map2XML.recordWriter(b4, "doc", "rec", off)) {
+		    rw.writeRecord(top);
+		}
+		Assert.assertArrayEquals(b4.toByteArray(), b3.toByteArray());
+	    } finally {
+		pool.shutdown();
+	    }
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void internNames() {
+
+	String xml = "<doc><rec><amount cur=\"USD\">1</amount></rec>"
+	    + "<rec><amount cur=\"EUR\">22</amount></rec></doc>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.internNames = true;
+	    Map<String,Object> q1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+
+	    List recs = (List)((Map)q1.get("doc")).get("rec");
+	    Map r0 = (Map)recs.get(0);
+	    Map r1 = (Map)recs.get(1);
+	    Assert.assertSame(keyOf(r0, "amount"), keyOf(r1, "amount"));
+	    Assert.assertSame(keyOf(r0, "__attributes_amount"), keyOf(r1, "__attributes_amount"));
+
+	    // Same Map as without interning:
+	    Map<String,Object> q2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()));
+	    Assert.assertEquals(q2, q1);
+
+	    // A shared table carries names from one parse to the next:
+	    org.moschetti.xml.SymbolTable st = new org.moschetti.xml.SymbolTable();
+	    XMLUtils.ParseOptions yy = new XMLUtils.ParseOptions();
+	    yy.symbolTable = st;
+	    Map<String,Object> p1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), yy);
+	    int n = st.size();
+	    Assert.assertTrue(n > 0);
+	    Map<String,Object> p2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), yy);
+	    Assert.assertEquals(n, st.size());
+	    Map a1 = (Map)((List)((Map)p1.get("doc")).get("rec")).get(0);
+	    Map a2 = (Map)((List)((Map)p2.get("doc")).get("rec")).get(1);
+	    Assert.assertSame(keyOf(a1, "__attributes_amount"), keyOf(a2, "__attributes_amount"));
+
+	    // Record keys too, for structured and scalar records alike:
+	    List<Map<String,Object>> rr = new ArrayList<Map<String,Object>>();
+	    XMLUtils.parseRecords(new ByteArrayInputStream(xml.getBytes()), "/doc/rec", yy, rr::add);
+	    XMLUtils.parseRecords(new ByteArrayInputStream(xml.getBytes()), "/doc/rec/amount", yy, rr::add);
+	    Assert.assertEquals(4, rr.size());
+	    Assert.assertSame(st.intern("rec"), keyOf(rr.get(1), "rec"));
+	    Assert.assertSame(st.intern("amount"), keyOf(rr.get(3), "amount"));
+	    Assert.assertSame(st.intern("__attributes_amount"), keyOf(rr.get(3), "__attributes_amount"));
+
+	    // Once full, new names are handed back but not kept:
+	    org.moschetti.xml.SymbolTable small = new org.moschetti.xml.SymbolTable(2);
+	    small.intern(new String("a"));
+	    small.intern(new String("b"));
+	    String c1 = new String("c");
+	    String c2 = new String("c");
+	    Assert.assertSame(c1, small.intern(c1));
+	    Assert.assertSame(c2, small.intern(c2));
+	    Assert.assertEquals(2, small.size());
+
+	    yy.symbolTable = new org.moschetti.xml.SymbolTable(2);
+	    Assert.assertEquals(q2, XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), yy));
+	    Assert.assertEquals(2, yy.symbolTable.size());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+    /**
+     *  The key object itself (not an equal one) as stored in m.
+     */
+    private static Object keyOf(Map m, String name) {
+	for(Object k : m.keySet()) {
+	    if(name.equals(k)) {
+		return k;
+	    }
+	}
+	return null;
+    }
+
+
+    @Test
+    public void valueDedupCache() {
+
+	String longText = "0123456789012345678901234567890123456789";
+	StringBuilder xml = new StringBuilder("<doc>");
+	for(int i = 0; i < 3; i++) {
+	    xml.append("<rec><s>ACTIVE</s><i>5000</i><l>3000000000</l>"
+		       + "<t>" + longText + "</t><d>2016-04-05</d></rec>");
+	}
+	xml.append("</doc>");
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+	    xx.convertDates = true;
+	    xx.valueDedupCache = 1024;
+	    Map<String,Object> q1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes()), xx);
+
+	    List recs = (List)((Map)q1.get("doc")).get("rec");
+	    Map r0 = (Map)recs.get(0);
+	    Map r2 = (Map)recs.get(2);
+	    Assert.assertSame(r0.get("s"), r2.get("s"));
+	    Assert.assertEquals(Integer.valueOf(5000), r2.get("i"));
+	    Assert.assertSame(r0.get("i"), r2.get("i"));
+	    Assert.assertEquals(Long.valueOf(3000000000L), r2.get("l"));
+	    Assert.assertSame(r0.get("l"), r2.get("l"));
+
+	    // Longer than ValueCache.MAX_LENGTH (32): not shared
+	    Assert.assertEquals(longText, r2.get("t"));
+	    Assert.assertNotSame(r0.get("t"), r2.get("t"));
+
+	    // Date is mutable, so never shared:
+	    Assert.assertTrue(r2.get("d") instanceof java.util.Date);
+	    Assert.assertEquals(r0.get("d"), r2.get("d"));
+	    Assert.assertNotSame(r0.get("d"), r2.get("d"));
+
+	    // Far more distinct values than slots: evictions must not
+	    // change the output.
+	    xml = new StringBuilder("<doc>");
+	    for(int k = 0; k < 2; k++) {
+		for(int i = 0; i < 500; i++) {
+		    xml.append("<v>" + (i % 2 == 0 ? "s" + i : "" + i) + "</v>");
+		}
+	    }
+	    xml.append("</doc>");
+	    xx.convertDates = false;
+	    xx.valueDedupCache = 16;
+	    Map<String,Object> e1 = XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes()), xx);
+	    xx.valueDedupCache = 0;
+	    Map<String,Object> e2 = XMLUtils.parseXML(new ByteArrayInputStream(xml.toString().getBytes()), xx);
+	    Assert.assertEquals(e2, e1);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void parserTemplate() {
+
+	final String[] docs = {
+	    "<p:data xmlns:p=\"urn:p\"><p:a x=\"1\">10</p:a><b><c>x</c><c>y</c></b></p:data>",
+	    "<data><a>2</a><a>3</a><deep><er><est>4.5</est></er></deep></data>",
+	    "<q:other xmlns:q=\"urn:q\"><q:z>2016-04-05</q:z><e/></q:other>",
+	    "<data><a>" + new String(new char[5000]).replace('\0', 'w') + "</a></data>"
+	};
+
+	try {
+	    final XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertNumbers = true;
+	    xx.convertDates = true;
+	    xx.namespaceField = "__ns";
+
+	    final List<Map<String,Object>> expect = new ArrayList<Map<String,Object>>();
+	    for(String d : docs) {
+		expect.add(XMLUtils.parseXML(new ByteArrayInputStream(d.getBytes()), xx));
+	    }
+
+	    // maxPooled 1: every parse reuses the same reset() handler, so
+	    // anything left over from the previous document would show.
+	    final org.moschetti.xml.XmlParserTemplate tpl = new org.moschetti.xml.XmlParserTemplate(HashMap.class, xx, 1);
+	    for(int k = 0; k < 3; k++) {
+		for(int i = 0; i < docs.length; i++) {
+		    Assert.assertEquals(expect.get(i), tpl.parse(new ByteArrayInputStream(docs[i].getBytes())));
+		}
+		// A failed parse must not poison the pool either:
+		try {
+		    tpl.parse(new ByteArrayInputStream("<data><a>1</b></data>".getBytes()));
+		    Assert.fail("bad XML parsed");
+		} catch(org.moschetti.xml.XMLParsingException e) {
+		    // expected
+		}
+	    }
+
+	    // Many threads at once:
+	    final org.moschetti.xml.XmlParserTemplate shared = new org.moschetti.xml.XmlParserTemplate(xx);
+	    final java.util.concurrent.atomic.AtomicInteger bad = new java.util.concurrent.atomic.AtomicInteger();
+	    List<Thread> threads = new ArrayList<Thread>();
+	    for(int t = 0; t < 8; t++) {
+		final int seed = t;
+		Thread th = new Thread(() -> {
+			for(int n = 0; n < 200; n++) {
+			    int i = (seed + n) % docs.length;
+			    try {
+				if(!expect.get(i).equals(shared.parse(new ByteArrayInputStream(docs[i].getBytes())))) {
+				    bad.incrementAndGet();
+				}
+			    } catch(Exception e) {
+				bad.incrementAndGet();
+			    }
+			}
+		    });
+		threads.add(th);
+		th.start();
+	    }
+	    for(Thread th : threads) {
+		th.join();
+	    }
+	    Assert.assertEquals(0, bad.get());
+
+	    // A record consumer may call back into the template:
+	    final List<Map<String,Object>> inner = new ArrayList<Map<String,Object>>();
+	    String recs = "<data><a>1</a><a>2</a><a>3</a></data>";
+	    tpl.parseRecords(new ByteArrayInputStream(recs.getBytes()), "/data/a", rec -> {
+		    try {
+			inner.add(tpl.parse(new ByteArrayInputStream(docs[1].getBytes())));
+		    } catch(org.moschetti.xml.XMLParsingException e) {
+			throw new RuntimeException(e);
+		    }
+		});
+	    Assert.assertEquals(3, inner.size());
+	    for(Map<String,Object> m : inner) {
+		Assert.assertEquals(expect.get(1), m);
+	    }
+	    Assert.assertEquals(expect.get(0), tpl.parse(new ByteArrayInputStream(docs[0].getBytes())));
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void templateFreezesOptions() {
+
+	String xml = "<data><a>1</a><b>2</b></data>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.include("/data/a");
+	    xx.typeHint("/data/a", String.class);
+	    Map<String,Object> before = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx);
+	    Assert.assertNull(((Map)before.get("data")).get("b"));
+
+	    // Changed before the template has made any parser:
+	    org.moschetti.xml.XmlParserTemplate tpl = new org.moschetti.xml.XmlParserTemplate(xx);
+	    xx.includePaths.add("/data/b");
+	    xx.typeHints.put("/data/a", Integer.class);
+	    Assert.assertEquals(before, tpl.parse(new ByteArrayInputStream(xml.getBytes())));
+
+	    // Nor do changes to the copy handed back:
+	    tpl.getOptions().includePaths.add("/data/b");
+	    Assert.assertEquals(1, tpl.getOptions().includePaths.size());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void dateOffsetModes() {
+
+	String xml = "<d><p>2020-01-01T00:00:00+05:00</p><m>2020-01-01T00:00:00.250-05:00</m>"
+	    + "<z>2020-01-01T00:00:00Z</z></d>";
+
+	try {
+	    XMLUtils.ParseOptions xx = new XMLUtils.ParseOptions();
+	    xx.convertDates = true;
+	    Map d1 = (Map)XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx).get("d");
+
+	    xx.dateType = XMLUtils.ParseOptions.DATES_AS_JAVA_TIME;
+	    Map d2 = (Map)XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()), xx).get("d");
+
+	    // The legacy java.util.Date path applies offsets with the wrong
+	    // sign, on purpose (see DATES_AS_UTIL_DATE):
+	    Assert.assertEquals(java.time.Instant.parse("2020-01-01T05:00:00Z"), ((java.util.Date)d1.get("p")).toInstant());
+	    Assert.assertEquals(java.time.Instant.parse("2019-12-31T19:00:00.250Z"), ((java.util.Date)d1.get("m")).toInstant());
+
+	    // java.time gets them right:
+	    Assert.assertEquals(java.time.OffsetDateTime.parse("2020-01-01T00:00:00+05:00"), d2.get("p"));
+	    Assert.assertEquals(java.time.Instant.parse("2019-12-31T19:00:00Z"), ((java.time.OffsetDateTime)d2.get("p")).toInstant());
+	    Assert.assertEquals(java.time.Instant.parse("2020-01-01T05:00:00.250Z"), ((java.time.OffsetDateTime)d2.get("m")).toInstant());
+
+	    // Z means the same in both:
+	    Assert.assertEquals(d2.get("z"), ((java.util.Date)d1.get("z")).toInstant());
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void lateAttributeList() {
+
+	String xml = "<d><r>1</r><r>2</r><r>3</r><r a=\"x\">4</r><r>5</r></d>";
+
+	try {
+	    Map<String,Object> q = XMLUtils.parseXML(new ByteArrayInputStream(xml.getBytes()));
+	    Map d = (Map)q.get("d");
+	    List attrs = (List)d.get("__attributes_r");
+	    Assert.assertEquals(5, attrs.size());
+	    Assert.assertNull(attrs.get(0));
+
+	    // Serializes (as a plain ArrayList) along with the rest:
+	    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+	    try(java.io.ObjectOutputStream oo = new java.io.ObjectOutputStream(bo)) {
+		oo.writeObject(q);
+	    }
+	    Object back;
+	    try(java.io.ObjectInputStream oi = new java.io.ObjectInputStream(new ByteArrayInputStream(bo.toByteArray()))) {
+		back = oi.readObject();
+	    }
+	    Assert.assertEquals(q, back);
+	    Assert.assertEquals(ArrayList.class, ((Map)((Map)back).get("d")).get("__attributes_r").getClass());
+
+	    // Structural changes, in and past the leading nulls, behave
+	    // just like they do on an ArrayList:
+	    List<Object> same = new ArrayList<Object>(attrs);
+	    for(List l : new List[] { attrs, same }) {
+		l.add("end");
+		l.add(1, "one");
+		l.remove(0);
+		l.set(0, "zero");
+		l.subList(1, 3).clear();
+		java.util.Iterator ii = l.iterator();
+		ii.next();
+		ii.remove();
+	    }
+	    Assert.assertEquals(same, attrs);
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
+    @Test
+    public void mappedOutputFallback() {
+	try {
+	    List<Map<String,Object>> recs = new ArrayList<Map<String,Object>>();
+	    for(int i = 0; i < 40000; i++) {
+		Map<String,Object> r = new HashMap<String,Object>();
+		r.put("id", i);
+		r.put("name", "n" + i);
+		recs.add(r);
+	    }
+	    Map<String,Object> top = new HashMap<String,Object>();
+	    top.put("row", recs);
+
+	    ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+	    Map2XML.writeXML(b1, top, "export");
+	    byte[] expect = b1.toByteArray();
+	    Assert.assertTrue(expect.length > (1 << 20)); // more than the first mapped piece
+
+	    java.nio.file.Path p = java.nio.file.Files.createTempFile("map2xml", ".xml");
+	    try {
+		// Cannot map at all: falls back to plain channel writes.
+		try(java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(p, java.nio.file.StandardOpenOption.READ,
+											java.nio.file.StandardOpenOption.WRITE)) {
+		    Map2XML.writeXML(new NoMapChannel(fc, 0), top, "export");
+		    Assert.assertEquals(expect.length, fc.size());
+		}
+		Assert.assertArrayEquals(expect, java.nio.file.Files.readAllBytes(p));
+
+		// Mapping fails part way: the write fails, but the file is
+		// not left grown past what was written.
+		java.nio.file.Files.write(p, new byte[0]);
+		try(java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(p, java.nio.file.StandardOpenOption.READ,
+											java.nio.file.StandardOpenOption.WRITE)) {
+		    try {
+			Map2XML.writeXML(new NoMapChannel(fc, 1), top, "export");
+			Assert.fail("write should have failed");
+		    } catch(java.io.IOException e) {
+			// expected
+		    }
+		    Assert.assertEquals(1 << 20, fc.size());
+		}
+	    } finally {
+		java.nio.file.Files.delete(p);
+	    }
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+    /**
+     *  FileChannel whose map() fails after the first maps calls.
+     */
+    private static class NoMapChannel extends java.nio.channels.FileChannel {
+	private final java.nio.channels.FileChannel fc;
+	private int maps;
+
+	NoMapChannel(java.nio.channels.FileChannel fc, int maps) {
+	    this.fc = fc;
+	    this.maps = maps;
+	}
+
+	public java.nio.MappedByteBuffer map(MapMode mode, long position, long size) throws java.io.IOException {
+	    if(maps-- <= 0) {
+		throw new java.io.IOException("no mapping here");
+	    }
+	    return fc.map(mode, position, size);
+	}
+
+	public int read(java.nio.ByteBuffer dst) throws java.io.IOException { return fc.read(dst); }
+	public long read(java.nio.ByteBuffer[] dsts, int off, int len) throws java.io.IOException { return fc.read(dsts, off, len); }
+	public int write(java.nio.ByteBuffer src) throws java.io.IOException { return fc.write(src); }
+	public long write(java.nio.ByteBuffer[] srcs, int off, int len) throws java.io.IOException { return fc.write(srcs, off, len); }
+	public long position() throws java.io.IOException { return fc.position(); }
+	public java.nio.channels.FileChannel position(long p) throws java.io.IOException { fc.position(p); return this; }
+	public long size() throws java.io.IOException { return fc.size(); }
+	public java.nio.channels.FileChannel truncate(long size) throws java.io.IOException { fc.truncate(size); return this; }
+	public void force(boolean metaData) throws java.io.IOException { fc.force(metaData); }
+	public long transferTo(long position, long count, java.nio.channels.WritableByteChannel target) throws java.io.IOException { return fc.transferTo(position, count, target); }
+	public long transferFrom(java.nio.channels.ReadableByteChannel src, long position, long count) throws java.io.IOException { return fc.transferFrom(src, position, count); }
+	public int read(java.nio.ByteBuffer dst, long position) throws java.io.IOException { return fc.read(dst, position); }
+	public int write(java.nio.ByteBuffer src, long position) throws java.io.IOException { return fc.write(src, position); }
+	public java.nio.channels.FileLock lock(long position, long size, boolean shared) throws java.io.IOException { return fc.lock(position, size, shared); }
+	public java.nio.channels.FileLock tryLock(long position, long size, boolean shared) throws java.io.IOException { return fc.tryLock(position, size, shared); }
+	protected void implCloseChannel() throws java.io.IOException { fc.close(); }
+    }
+
+
+    @Test
+    public void feedParserChecksSkeleton() {
+
+	String[] bad = {
+	    "<data><item><a>1</a></item><junk><item><a>2</a></item></data>",
+	    "<data><item><a>1</a></item><x y=1/><item><a>2</a></item></data>",
+	    "<data><hdr>h</hdx><item><a>1</a></item></data>"
+	};
+
+	try {
+	    for(String s : bad) {
+		byte[] xml = s.getBytes();
+
+		try {
+		    XMLUtils.parseRecords(new ByteArrayInputStream(xml), "/data/item", new XMLUtils.ParseOptions(), r -> {});
+		    Assert.fail("parseRecords took " + s);
+		} catch(org.moschetti.xml.XMLParsingException e) {
+		    // expected
+		}
+
+		org.moschetti.xml.FeedParser fp = XMLUtils.feedParser("/data/item", new XMLUtils.ParseOptions(), r -> {});
+		try {
+		    for(int off = 0; off < xml.length; off += 7) {
+			fp.feed(xml, off, Math.min(7, xml.length - off));
+		    }
+		    fp.endOfInput();
+		    Assert.fail("FeedParser took " + s);
+		} catch(org.moschetti.xml.XMLParsingException e) {
+		    // expected
+		}
+	    }
+
+	} catch(Exception e) {
+	    Assert.fail("epic fail: " + e);
+	}
+    }
+
+
     private static void walkMap(Map m, int depth) {
 	java.util.Iterator<String> ii = m.keySet().iterator();
 	while(ii.hasNext()) {